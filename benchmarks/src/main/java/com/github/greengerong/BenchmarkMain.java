@@ -0,0 +1,24 @@
+package com.github.greengerong;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks selected on the command line (all of them by default), always with the GC profiler, so every
+ * result comes with its allocation rate ("gc.alloc.rate.norm" is bytes allocated per operation).
+ * <p/>
+ * Takes the usual JMH options: {@code java -jar target/benchmarks.jar Classification -f 1 -wi 3 -i 5}.
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        final Options options = new OptionsBuilder()
+                .parent(new CommandLineOptions(args))
+                .addProfiler(GCProfiler.class)
+                .build();
+        new Runner(options).run();
+    }
+}
@@ -0,0 +1,119 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.http.HttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Intercept decision for a realistic mix of human and bot traffic over pages, static resources and escaped fragment
+ * urls. Requests that are intercepted are answered by a canned beforeRender page, so only the classification is
+ * measured, never a prerender call.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ClassificationBenchmark {
+    private static final String[] HUMAN_USER_AGENTS = {
+            "Mozilla/5.0 (Windows NT 10.0; Win64; x64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36",
+            "Mozilla/5.0 (iPhone; CPU iPhone OS 17_1 like Mac OS X) AppleWebKit/605.1.15 (KHTML, like Gecko) Version/17.1 Mobile/15E148 Safari/604.1",
+            "Mozilla/5.0 (X11; Linux x86_64; rv:121.0) Gecko/20100101 Firefox/121.0",
+            "Mozilla/5.0 (Macintosh; Intel Mac OS X 10_15_7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/120.0.0.0 Safari/537.36 Edg/120.0.0.0"};
+    private static final String[] BOT_USER_AGENTS = {
+            "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+            "Mozilla/5.0 (compatible; bingbot/2.0; +http://www.bing.com/bingbot.htm)",
+            "facebookexternalhit/1.1 (+http://www.facebook.com/externalhit_uatext.php)",
+            "Twitterbot/1.0",
+            "Slackbot-LinkExpanding 1.0 (+https://api.slack.com/robots)"};
+    private static final String[] URLS = {
+            "http://www.example.com/",
+            "http://www.example.com/products/42?color=red&size=m",
+            "http://www.example.com/blog/2014/03/a-rather-long-article-title",
+            "http://www.example.com/static/app.3f2a1c9e.js",
+            "http://www.example.com/static/styles.min.css?v=12",
+            "http://www.example.com/img/hero-banner.PNG",
+            "http://www.example.com/fonts/icons.woff2",
+            "http://www.example.com/search?q=running+shoes&page=2",
+            "http://www.example.com/?_escaped_fragment_=/about"};
+    private static final int REQUESTS = 1024;
+
+    /**
+     * Share of requests that come from bots, in percent.
+     */
+    @Param({"5", "50"})
+    public int botPercent;
+
+    private PrerenderSeoService service;
+    private HttpServletRequest[] requests;
+    private HttpServletResponse response;
+    private int next;
+
+    @Setup
+    public void setUp() {
+        final Map<String, String> config = Maps.newHashMap();
+        config.put("preRenderEventHandler", CannedPageHandler.class.getName());
+        config.put("crawlerUserAgents", "googlebot,bingbot");
+        service = new PrerenderSeoService(config);
+        response = ServletStubs.response();
+        requests = new HttpServletRequest[REQUESTS];
+        final Random random = new Random(42);
+        for (int i = 0; i < REQUESTS; i++) {
+            final String[] userAgents = random.nextInt(100) < botPercent ? BOT_USER_AGENTS : HUMAN_USER_AGENTS;
+            requests[i] = ServletStubs.request(URLS[random.nextInt(URLS.length)], ImmutableMap.of(
+                    "User-Agent", userAgents[random.nextInt(userAgents.length)],
+                    "Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+                    "Accept-Language", "en-US,en;q=0.5",
+                    "Referer", "https://www.google.com/"));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Benchmark
+    public boolean classify() {
+        return service.prerenderIfEligible(requests[next++ & (REQUESTS - 1)], response);
+    }
+
+    /**
+     * Answers every intercepted request with the same page, so no prerender call is made.
+     */
+    public static class CannedPageHandler implements PreRenderEventHandler {
+        @Override
+        public String beforeRender(HttpServletRequest clientRequest) {
+            return "<html><body>canned</body></html>";
+        }
+
+        @Override
+        public String afterRender(HttpServletRequest clientRequest, HttpServletResponse clientResponse,
+                                  HttpResponse prerenderResponse, String responseHtml) {
+            return responseHtml;
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+}
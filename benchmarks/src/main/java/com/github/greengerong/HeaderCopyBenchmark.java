@@ -0,0 +1,91 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Copying a crawler's request headers to the prerender call, and the render's response headers back to the crawler.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderCopyBenchmark {
+    private PrerenderSeoService service;
+    private PrerenderEndpoint endpoint;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private BasicHttpResponse prerenderResponse;
+
+    @Setup
+    public void setUp() {
+        service = new PrerenderSeoService(Maps.<String, String>newHashMap());
+        endpoint = service.getEndpointPool().getEndpoints().get(0);
+        request = ServletStubs.request("http://www.example.com/products/42", ImmutableMap.<String, String>builder()
+                .put("Host", "www.example.com")
+                .put("User-Agent", "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)")
+                .put("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8")
+                .put("Accept-Encoding", "gzip, deflate, br")
+                .put("Accept-Language", "en-US,en;q=0.5")
+                .put("Connection", "keep-alive")
+                .put("Cache-Control", "no-cache")
+                .put("If-Modified-Since", "Sat, 17 Oct 2026 10:00:00 GMT")
+                .put("From", "googlebot(at)googlebot.com")
+                .put("X-Forwarded-For", "66.249.66.1")
+                .put("X-Forwarded-Proto", "https")
+                .put("Upgrade-Insecure-Requests", "1")
+                .build());
+        response = ServletStubs.response();
+        prerenderResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        prerenderResponse.setEntity(new StringEntity("<html></html>", ContentType.TEXT_HTML));
+        prerenderResponse.addHeader("Content-Type", "text/html; charset=utf-8");
+        prerenderResponse.addHeader("Cache-Control", "public, max-age=300");
+        prerenderResponse.addHeader("ETag", "W/\"5e15153d-120f\"");
+        prerenderResponse.addHeader("Last-Modified", "Sat, 17 Oct 2026 10:00:00 GMT");
+        prerenderResponse.addHeader("Vary", "Accept-Encoding");
+        prerenderResponse.addHeader("Date", "Sat, 17 Oct 2026 10:05:00 GMT");
+        prerenderResponse.addHeader("Connection", "keep-alive");
+        prerenderResponse.addHeader("Keep-Alive", "timeout=5");
+        prerenderResponse.addHeader("Transfer-Encoding", "chunked");
+        prerenderResponse.addHeader("X-Prerender-Requestid", "f3a9c2d1-8b7e-4f6a-9c3d-2e1b0a9f8e7d");
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.destroy();
+    }
+
+    @Benchmark
+    public HttpGet copyRequestHeaders() {
+        final HttpGet getMethod = new HttpGet("http://service.prerender.io/http://www.example.com/products/42");
+        service.copyRequestHeaders(request, getMethod, endpoint);
+        return getMethod;
+    }
+
+    @Benchmark
+    public void copyResponseHeaders() {
+        service.copyResponseHeaders(prerenderResponse, response);
+    }
+}
@@ -0,0 +1,73 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A crawler request proxied end to end, over a real http connection to an in-process stub prerender service,
+ * without the page cache (every request is a render) and with it (every request after the first is a hit).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ProxyBenchmark {
+
+    @Param({"0", "1000"})
+    public String cacheMaxEntries;
+
+    @Param({"16384", "262144"})
+    public int pageSize;
+
+    private StubPrerenderServer server;
+    private PrerenderSeoService service;
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+
+    @Setup
+    public void setUp() throws IOException {
+        server = new StubPrerenderServer(pageSize);
+        final Map<String, String> config = Maps.newHashMap();
+        config.put("prerenderServiceUrl", server.getUrl());
+        config.put("cacheMaxEntries", cacheMaxEntries);
+        config.put("crawlerUserAgents", "googlebot");
+        service = new PrerenderSeoService(config);
+        request = ServletStubs.request("http://www.example.com/products/42", ImmutableMap.of(
+                "Host", "www.example.com",
+                "User-Agent", "Mozilla/5.0 (compatible; Googlebot/2.1; +http://www.google.com/bot.html)",
+                "Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8",
+                "Accept-Encoding", "gzip, deflate"));
+        response = ServletStubs.response();
+    }
+
+    @TearDown
+    public void tearDown() {
+        service.destroy();
+        server.stop();
+    }
+
+    @Benchmark
+    public boolean proxy() {
+        return service.prerenderIfEligible(request, response);
+    }
+}
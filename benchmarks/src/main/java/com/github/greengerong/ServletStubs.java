@@ -0,0 +1,120 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.common.io.CharStreams;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Minimal servlet request and response stubs, built with dynamic proxies so the benchmarks need no servlet
+ * container and no mocking library on the measured path. Every method that is not stubbed returns null, false or 0.
+ */
+final class ServletStubs {
+    private static final Map<Class<?>, Object> DEFAULT_VALUES = ImmutableMap.<Class<?>, Object>builder()
+            .put(boolean.class, false).put(int.class, 0).put(long.class, 0L).build();
+
+    private ServletStubs() {
+    }
+
+    /**
+     * A GET request for {@code url} (with its query string, if any) carrying {@code headers}.
+     */
+    static HttpServletRequest request(String url, Map<String, String> headers) {
+        final int query = url.indexOf('?');
+        final String requestUrl = query >= 0 ? url.substring(0, query) : url;
+        final String queryString = query >= 0 ? url.substring(query + 1) : null;
+        final Map<String, String[]> parameters = Maps.newHashMap();
+        if (queryString != null) {
+            for (String parameter : queryString.split("&")) {
+                final int equals = parameter.indexOf('=');
+                parameters.put(equals >= 0 ? parameter.substring(0, equals) : parameter,
+                        new String[]{equals >= 0 ? parameter.substring(equals + 1) : ""});
+            }
+        }
+        final TreeMap<String, String> headersByName = new TreeMap<String, String>(String.CASE_INSENSITIVE_ORDER);
+        headersByName.putAll(headers);
+        return stub(HttpServletRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if ("getMethod".equals(name)) {
+                    return "GET";
+                }
+                if ("getRequestURL".equals(name)) {
+                    return new StringBuffer(requestUrl);
+                }
+                if ("getScheme".equals(name)) {
+                    return requestUrl.substring(0, requestUrl.indexOf(':'));
+                }
+                if ("getQueryString".equals(name)) {
+                    return queryString;
+                }
+                if ("getParameterMap".equals(name)) {
+                    return parameters;
+                }
+                if ("getHeader".equals(name)) {
+                    return headersByName.get(args[0]);
+                }
+                if ("getHeaders".equals(name)) {
+                    final String value = headersByName.get(args[0]);
+                    return Collections.enumeration(value != null ? Collections.singletonList(value)
+                            : Collections.<String>emptyList());
+                }
+                if ("getHeaderNames".equals(name)) {
+                    return Collections.enumeration(headersByName.keySet());
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    /**
+     * A response that discards everything written to it. Every getWriter() call returns a new writer, since the
+     * filter closes it after the page.
+     */
+    static HttpServletResponse response() {
+        final ServletOutputStream outputStream = new ServletOutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        return stub(HttpServletResponse.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                final String name = method.getName();
+                if ("getOutputStream".equals(name)) {
+                    return outputStream;
+                }
+                if ("getWriter".equals(name)) {
+                    return new PrintWriter(CharStreams.nullWriter());
+                }
+                if ("getCharacterEncoding".equals(name)) {
+                    return "UTF-8";
+                }
+                return defaultValue(method);
+            }
+        });
+    }
+
+    private static Object defaultValue(Method method) {
+        return DEFAULT_VALUES.get(method.getReturnType());
+    }
+
+    private static <T> T stub(Class<T> type, InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+}
@@ -0,0 +1,55 @@
+package com.github.greengerong;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Strings;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * In-process stand-in for the prerender service: answers every GET with the same page of about {@code pageSize}
+ * bytes, immediately, so a proxy benchmark measures the filter and the http client rather than a browser.
+ */
+final class StubPrerenderServer {
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] page;
+
+    StubPrerenderServer(int pageSize) throws IOException {
+        this.page = ("<!DOCTYPE html><html><head><title>stub</title></head><body><p>"
+                + Strings.repeat("x", Math.max(pageSize - 80, 0)) + "</p></body></html>").getBytes(Charsets.UTF_8);
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 128);
+        this.executor = Executors.newFixedThreadPool(4);
+        server.setExecutor(executor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+                exchange.sendResponseHeaders(200, page.length);
+                final OutputStream body = exchange.getResponseBody();
+                body.write(page);
+                body.close();
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * The prerender service url to configure the filter with.
+     */
+    String getUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whitelist/blacklist matching, as {@link UrlPatternSet} does it for both, with a growing number of patterns: half
+ * path segment patterns and half more selective regular expressions. Like the filter, a pattern must match the whole
+ * url.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UrlPatternBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int patterns;
+
+    private UrlPatternSet patternSet;
+    private String firstPatternUrl;
+    private String lastPatternUrl;
+    private String unmatchedUrl;
+
+    @Setup
+    public void setUp() {
+        final List<String> regexes = Lists.newArrayListWithCapacity(patterns);
+        for (int i = 0; i < patterns; i++) {
+            regexes.add(i % 2 == 0 ? ".*/section-" + i + "/.*" : "https?://[^/]+/users/\\d+/tab-" + i + "(\\?.*)?");
+        }
+        patternSet = new UrlPatternSet(regexes);
+        firstPatternUrl = "http://www.example.com/section-0/some/page";
+        final int last = patterns - 1;
+        lastPatternUrl = last % 2 == 0 ? "http://www.example.com/section-" + last + "/some/page"
+                : "http://www.example.com/users/1234/tab-" + last + "?ref=nav";
+        unmatchedUrl = "http://www.example.com/products/42/reviews?page=3";
+    }
+
+    @Benchmark
+    public boolean matchFirstPattern() {
+        return patternSet.matches(firstPatternUrl);
+    }
+
+    @Benchmark
+    public boolean matchLastPattern() {
+        return patternSet.matches(lastPatternUrl);
+    }
+
+    @Benchmark
+    public boolean matchNone() {
+        return patternSet.matches(unmatchedUrl);
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.greengerong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-fetches stale pages off the request thread. A bounded pool and queue cap the extra load on the prerender
+ * service, and a key that is already being refreshed is not scheduled twice.
+ */
+public class BackgroundRefresher {
+    private final static Logger log = LoggerFactory.getLogger(BackgroundRefresher.class);
+    private final ThreadPoolExecutor executor;
+    private final Set<String> inFlight = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    public BackgroundRefresher(int threads, int queueSize) {
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(queueSize, 1)),
+                new ThreadFactoryBuilder().setNameFormat("prerender-refresh-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Schedule {@code task} unless {@code key} is already being refreshed or the queue is full.
+     *
+     * @return true when the task was scheduled.
+     */
+    public boolean refresh(final String key, final Callable<?> task) {
+        if (!inFlight.add(key)) {
+            return false;
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.call();
+                    } catch (Exception e) {
+                        log.error(String.format("Background refresh of %s failed", key), e);
+                    } finally {
+                        inFlight.remove(key);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            inFlight.remove(key);
+            log.trace(String.format("Refresh queue is full, %s is not refreshed", key));
+            return false;
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.greengerong;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Repeatable entity over a ByteBuffer, which may be a slice of a memory-mapped file. The content is read in place
+ * instead of being copied into a byte array first.
+ */
+public class ByteBufferEntity extends AbstractHttpEntity {
+    private static final int CHUNK_SIZE = 8 * 1024;
+    private final ByteBuffer buffer;
+
+    public ByteBufferEntity(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate();
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return buffer.remaining();
+    }
+
+    @Override
+    public InputStream getContent() {
+        return new ByteBufferInputStream(buffer.duplicate());
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        final ByteBuffer source = buffer.duplicate();
+        if (source.hasArray()) {
+            outstream.write(source.array(), source.arrayOffset() + source.position(), source.remaining());
+        } else {
+            final byte[] chunk = new byte[Math.min(CHUNK_SIZE, source.remaining())];
+            while (source.hasRemaining()) {
+                final int length = Math.min(chunk.length, source.remaining());
+                source.get(chunk, 0, length);
+                outstream.write(chunk, 0, length);
+            }
+        }
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            final int read = Math.min(length, buffer.remaining());
+            buffer.get(bytes, offset, read);
+            return read;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.github.greengerong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Renders pages into the page cache before crawlers ask for them.
+ * <p/>
+ * Each source is a sitemap (a urlset, or a sitemapindex whose sitemaps are read in turn, gzip compressed when its
+ * name ends with ".gz") or a plain list with one url per line and "#" comments, read from an http(s) url or a local
+ * file. Urls that are already cached and fresh are skipped, and the others are rendered through
+ * {@link PrerenderSeoService#recache}, at most {@code ratePerSecond} renders started per second and
+ * {@code concurrency} at a time, so warming never takes more of the prerender service than it is given.
+ */
+public class CacheWarmer {
+    private final static Logger log = LoggerFactory.getLogger(CacheWarmer.class);
+    private static final String SITEMAP_INDEX = "sitemapindex";
+    private final PrerenderSeoService prerenderSeoService;
+    private final CloseableHttpClient httpClient;
+    private final List<String> sources;
+    private final RateLimiter rateLimiter;
+    private final int concurrency;
+    private final Semaphore permits;
+    private final long intervalMillis;
+    private final ExecutorService workers;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicLong rendered = new AtomicLong();
+    private final AtomicLong skipped = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    public CacheWarmer(PrerenderSeoService prerenderSeoService, CloseableHttpClient httpClient, List<String> sources,
+                       double ratePerSecond, int concurrency, long intervalMillis) {
+        this.prerenderSeoService = prerenderSeoService;
+        this.httpClient = httpClient;
+        this.sources = sources;
+        this.rateLimiter = RateLimiter.create(ratePerSecond);
+        this.concurrency = Math.max(concurrency, 1);
+        this.permits = new Semaphore(this.concurrency);
+        this.intervalMillis = intervalMillis;
+        this.workers = Executors.newFixedThreadPool(this.concurrency, new ThreadFactoryBuilder()
+                .setNameFormat("prerender-warm-%d").setDaemon(true).build());
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("prerender-warm-scheduler-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Warm the sources now, in the background, and again every interval when there is one.
+     */
+    public void start() {
+        final Runnable warmSources = new Runnable() {
+            @Override
+            public void run() {
+                warmSources();
+            }
+        };
+        if (intervalMillis > 0) {
+            scheduler.scheduleWithFixedDelay(warmSources, 0, intervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            scheduler.execute(warmSources);
+        }
+    }
+
+    /**
+     * Read every source and warm its urls. A source that can not be read is logged and skipped.
+     */
+    public void warmSources() {
+        for (String source : sources) {
+            try {
+                final List<String> urls = readUrls(source);
+                log.info(String.format("Warming %d prerendered pages from %s", urls.size(), source));
+                warm(urls);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error(String.format("Can not read cache warm up source %s", source), e);
+            }
+        }
+    }
+
+    /**
+     * Render the urls that are not cached yet, within the rate and concurrency limits, and wait for them.
+     */
+    public void warm(Collection<String> urls) throws InterruptedException {
+        for (final String url : urls) {
+            if (prerenderSeoService.isCached(url)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            permits.acquire();
+            rateLimiter.acquire();
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (prerenderSeoService.recache(url)) {
+                            rendered.incrementAndGet();
+                        } else {
+                            failed.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        failed.incrementAndGet();
+                        log.warn(String.format("Can not warm prerendered page %s: %s", url, e.getMessage()));
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+        }
+        permits.acquire(concurrency);
+        permits.release(concurrency);
+    }
+
+    /**
+     * Pages rendered into the cache since the warmer was created.
+     */
+    public long getRenderedCount() {
+        return rendered.get();
+    }
+
+    /**
+     * Urls that were already cached.
+     */
+    public long getSkippedCount() {
+        return skipped.get();
+    }
+
+    /**
+     * Renders that failed or that the prerender service answered with a server error.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    /**
+     * The urls listed by a sitemap, a sitemap index or a url list.
+     */
+    List<String> readUrls(String source) throws IOException {
+        return readUrls(source, true);
+    }
+
+    private List<String> readUrls(String source, boolean followIndex) throws IOException {
+        byte[] content = read(source);
+        if (source.endsWith(".gz")) {
+            content = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(content)));
+        }
+        final String text = new String(content, Charsets.UTF_8).trim();
+        if (!text.startsWith("<")) {
+            return parseUrlList(text);
+        }
+        final Element root = parseXml(content).getDocumentElement();
+        final List<String> locations = getLocations(root);
+        if (!SITEMAP_INDEX.equals(root.getLocalName())) {
+            return locations;
+        }
+        final List<String> urls = Lists.newArrayList();
+        if (!followIndex) {
+            log.warn(String.format("Sitemap index %s is nested in another index, not followed", source));
+            return urls;
+        }
+        for (String sitemap : locations) {
+            urls.addAll(readUrls(sitemap, false));
+        }
+        return urls;
+    }
+
+    private byte[] read(String source) throws IOException {
+        if (!source.startsWith("http://") && !source.startsWith("https://")) {
+            final InputStream input = new FileInputStream(source);
+            try {
+                return ByteStreams.toByteArray(input);
+            } finally {
+                input.close();
+            }
+        }
+        final CloseableHttpResponse response = httpClient.execute(new HttpGet(source));
+        try {
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_OK || response.getEntity() == null) {
+                throw new IOException(String.format("%s answered %s", source, response.getStatusLine()));
+            }
+            final InputStream input = response.getEntity().getContent();
+            try {
+                return ByteStreams.toByteArray(input);
+            } finally {
+                input.close();
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static List<String> parseUrlList(String text) {
+        final List<String> urls = Lists.newArrayList();
+        for (String line : text.split("\r?\n")) {
+            final String url = line.trim();
+            if (!url.isEmpty() && !url.startsWith("#")) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    private static List<String> getLocations(Element root) {
+        final NodeList locations = root.getElementsByTagNameNS("*", "loc");
+        final List<String> urls = Lists.newArrayListWithCapacity(locations.getLength());
+        for (int i = 0; i < locations.getLength(); i++) {
+            final String url = locations.item(i).getTextContent().trim();
+            if (!url.isEmpty()) {
+                urls.add(url);
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * Parse a sitemap with DTDs and external entities disabled, since it may come from anywhere.
+     */
+    private static Document parseXml(byte[] content) throws IOException {
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setExpandEntityReferences(false);
+            final DocumentBuilder builder = factory.newDocumentBuilder();
+            return builder.parse(new ByteArrayInputStream(content));
+        } catch (ParserConfigurationException e) {
+            throw new IOException(e);
+        } catch (SAXException e) {
+            throw new IOException(e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.github.greengerong;
+
+import java.util.Collection;
+
+/**
+ * Immutable, case insensitive string set that can test any region of a CharSequence without allocating.
+ * <p/>
+ * Entries are stored lowercased in an open addressing table, and lookups lowercase the probed region char by char.
+ */
+public class CaseInsensitiveStringSet {
+    private final char[][] table;
+    private final int mask;
+    private final int size;
+
+    public CaseInsensitiveStringSet(Collection<String> values) {
+        int capacity = 4;
+        while (capacity < values.size() * 2) {
+            capacity <<= 1;
+        }
+        this.table = new char[capacity][];
+        this.mask = capacity - 1;
+        int count = 0;
+        for (String value : values) {
+            if (value != null && add(toLowerCase(value))) {
+                count++;
+            }
+        }
+        this.size = count;
+    }
+
+    public boolean contains(CharSequence value) {
+        return value != null && contains(value, 0, value.length());
+    }
+
+    /**
+     * Whether the chars of {@code value} between {@code start} (inclusive) and {@code end} (exclusive) are in the set.
+     */
+    public boolean contains(CharSequence value, int start, int end) {
+        for (int index = hash(value, start, end) & mask; table[index] != null; index = (index + 1) & mask) {
+            if (regionEquals(table[index], value, start, end)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private boolean add(char[] value) {
+        final String string = new String(value);
+        int index = hash(string, 0, value.length) & mask;
+        while (table[index] != null) {
+            if (regionEquals(table[index], string, 0, value.length)) {
+                return false;
+            }
+            index = (index + 1) & mask;
+        }
+        table[index] = value;
+        return true;
+    }
+
+    private static boolean regionEquals(char[] entry, CharSequence value, int start, int end) {
+        if (entry.length != end - start) {
+            return false;
+        }
+        for (int i = 0; i < entry.length; i++) {
+            if (entry[i] != Character.toLowerCase(value.charAt(start + i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int hash(CharSequence value, int start, int end) {
+        int hash = 0;
+        for (int i = start; i < end; i++) {
+            hash = 31 * hash + Character.toLowerCase(value.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static char[] toLowerCase(String value) {
+        final char[] chars = new char[value.length()];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = Character.toLowerCase(value.charAt(i));
+        }
+        return chars;
+    }
+}
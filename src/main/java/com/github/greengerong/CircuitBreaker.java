@@ -0,0 +1,182 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Circuit breaker around calls to a prerender endpoint, over a sliding window of the last calls.
+ * <p/>
+ * CLOSED lets every call through. It opens when, over at least the minimum number of calls, the failure rate or
+ * the slow call rate reaches its threshold. OPEN rejects every call until the open duration has passed, then
+ * HALF_OPEN lets a few probe calls through: it closes again when they all succeed, and opens again on the first one
+ * that fails or is slow.
+ */
+public class CircuitBreaker {
+    private final static Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final int slowCallRateThreshold;
+    private final long slowCallDurationNanos;
+    private final long openDurationNanos;
+    private final int halfOpenProbes;
+    private final Ticker ticker;
+    private final boolean[] failedCalls;
+    private final boolean[] slowCalls;
+    private int calls;
+    private int next;
+    private int failures;
+    private int slow;
+    private State state = State.CLOSED;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+    private long notPermitted;
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold,
+                          int slowCallRateThreshold, long slowCallDurationMillis, long openDurationMillis,
+                          int halfOpenProbes) {
+        this(name, windowSize, minimumCalls, failureRateThreshold, slowCallRateThreshold, slowCallDurationMillis,
+                openDurationMillis, halfOpenProbes, Ticker.systemTicker());
+    }
+
+    public CircuitBreaker(String name, int windowSize, int minimumCalls, int failureRateThreshold,
+                          int slowCallRateThreshold, long slowCallDurationMillis, long openDurationMillis,
+                          int halfOpenProbes, Ticker ticker) {
+        this.name = name;
+        this.failedCalls = new boolean[Math.max(windowSize, 1)];
+        this.slowCalls = new boolean[failedCalls.length];
+        this.minimumCalls = Math.min(Math.max(minimumCalls, 1), failedCalls.length);
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.slowCallDurationNanos = TimeUnit.MILLISECONDS.toNanos(slowCallDurationMillis);
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        this.halfOpenProbes = Math.max(halfOpenProbes, 1);
+        this.ticker = ticker;
+    }
+
+    /**
+     * Whether a call may go through now. Every permitted call must be followed by {@link #onResult} or
+     * {@link #release()}.
+     */
+    public synchronized boolean tryAcquire() {
+        if (state == State.OPEN && ticker.read() - openedAt >= openDurationNanos) {
+            transitionTo(State.HALF_OPEN);
+        }
+        if (state == State.CLOSED) {
+            return true;
+        }
+        if (state == State.HALF_OPEN && probesStarted < halfOpenProbes) {
+            probesStarted++;
+            return true;
+        }
+        notPermitted++;
+        return false;
+    }
+
+    /**
+     * Record the outcome of a permitted call.
+     */
+    public synchronized void onResult(long latencyNanos, boolean succeeded) {
+        final boolean slowCall = latencyNanos > slowCallDurationNanos;
+        if (state == State.HALF_OPEN) {
+            if (!succeeded || slowCall) {
+                transitionTo(State.OPEN);
+            } else if (++probesSucceeded >= halfOpenProbes) {
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            return;
+        }
+        record(!succeeded, slowCall);
+        if (calls >= minimumCalls && (failures * 100 >= failureRateThreshold * calls
+                || slow * 100 >= slowCallRateThreshold * calls)) {
+            transitionTo(State.OPEN);
+        }
+    }
+
+    /**
+     * Give back a permit whose call was not made.
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN && probesStarted > probesSucceeded) {
+            probesStarted--;
+        }
+    }
+
+    /**
+     * Whether calls are rejected right now, without taking a permit: open, and the open duration has not passed.
+     */
+    public synchronized boolean isOpen() {
+        return state == State.OPEN && ticker.read() - openedAt < openDurationNanos;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Failed calls in the window, in percent.
+     */
+    public synchronized float getFailureRate() {
+        return calls == 0 ? 0 : failures * 100f / calls;
+    }
+
+    /**
+     * Slow calls in the window, in percent.
+     */
+    public synchronized float getSlowCallRate() {
+        return calls == 0 ? 0 : slow * 100f / calls;
+    }
+
+    /**
+     * Calls rejected while the breaker was open.
+     */
+    public synchronized long getNotPermittedCount() {
+        return notPermitted;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private void record(boolean failed, boolean slowCall) {
+        if (calls == failedCalls.length) {
+            failures -= failedCalls[next] ? 1 : 0;
+            slow -= slowCalls[next] ? 1 : 0;
+        } else {
+            calls++;
+        }
+        failedCalls[next] = failed;
+        slowCalls[next] = slowCall;
+        failures += failed ? 1 : 0;
+        slow += slowCall ? 1 : 0;
+        next = (next + 1) % failedCalls.length;
+    }
+
+    private void transitionTo(State newState) {
+        log.warn(String.format("Circuit breaker %s: %s -> %s (failure rate %.1f%%, slow call rate %.1f%%)", name,
+                state, newState, getFailureRate(), getSlowCallRate()));
+        state = newState;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (newState == State.OPEN) {
+            openedAt = ticker.read();
+        } else if (newState == State.CLOSED) {
+            calls = 0;
+            next = 0;
+            failures = 0;
+            slow = 0;
+        }
+    }
+}
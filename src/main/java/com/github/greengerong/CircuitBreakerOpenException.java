@@ -0,0 +1,12 @@
+package com.github.greengerong;
+
+/**
+ * Thrown instead of calling the prerender service while its circuit breaker is open.
+ */
+public class CircuitBreakerOpenException extends PrerenderRejectedException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitBreakerOpenException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,12 @@
+package com.github.greengerong;
+
+/**
+ * Thrown instead of calling the prerender service when the concurrency limit is reached.
+ */
+public class ConcurrencyLimitExceededException extends PrerenderRejectedException {
+    private static final long serialVersionUID = 1L;
+
+    public ConcurrencyLimitExceededException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,127 @@
+package com.github.greengerong;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Adaptive (AIMD) limit on concurrent prerender calls, with a bounded wait queue.
+ * <p/>
+ * The limit grows by about one per limit's worth of calls that finish under the latency threshold while the limit is
+ * in use, and is multiplied by the backoff ratio when a call fails or is slower than the threshold, so a slow
+ * prerender tier quickly gets fewer container threads to hold.
+ */
+public class ConcurrencyLimiter {
+    private static final double BACKOFF_RATIO = 0.9;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long queueTimeoutNanos;
+    private final long latencyThresholdNanos;
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private long rejected;
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueueSize, long queueTimeoutMillis,
+                              long latencyThresholdMillis) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.maxQueueSize = maxQueueSize;
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.limit = Math.min(Math.max(initialLimit, this.minLimit), this.maxLimit);
+    }
+
+    /**
+     * Take a permit without waiting.
+     *
+     * @return false when the limit is reached.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight < getLimit()) {
+            inFlight++;
+            return true;
+        }
+        rejected++;
+        return false;
+    }
+
+    /**
+     * Take a permit, waiting in the queue up to the queue timeout when the limit is reached.
+     *
+     * @return false when the queue is full, the wait times out or the thread is interrupted.
+     */
+    public synchronized boolean acquire() {
+        if (inFlight < getLimit()) {
+            inFlight++;
+            return true;
+        }
+        if (waiting >= maxQueueSize) {
+            rejected++;
+            return false;
+        }
+        waiting++;
+        try {
+            final long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (inFlight >= getLimit()) {
+                final long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    rejected++;
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+            inFlight++;
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected++;
+            return false;
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Return a permit and adjust the limit from the outcome of the call.
+     *
+     * @param latencyNanos how long the call held the permit.
+     * @param succeeded    false when the call failed or timed out.
+     */
+    public synchronized void release(long latencyNanos, boolean succeeded) {
+        final boolean saturated = inFlight >= getLimit();
+        inFlight--;
+        if (!succeeded || latencyNanos > latencyThresholdNanos) {
+            limit = Math.max(minLimit, limit * BACKOFF_RATIO);
+        } else if (saturated) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Return a permit whose call was aborted, without adjusting the limit.
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    /**
+     * Calls turned away since the limiter was created.
+     */
+    public synchronized long getRejectedCount() {
+        return rejected;
+    }
+}
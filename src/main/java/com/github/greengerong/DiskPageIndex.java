@@ -0,0 +1,153 @@
+package com.github.greengerong;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Off-heap open addressing hash table from a 64 bit url hash to the location of its record in the disk page store:
+ * (segment id, offset, length, creation time).
+ * <p/>
+ * Each slot is a fixed 32 byte region of a direct ByteBuffer, so millions of entries cost no heap objects. Not thread
+ * safe; {@link DiskPageStore} guards it with its lock.
+ */
+class DiskPageIndex {
+    static final long EMPTY = 0;
+    static final long TOMBSTONE = -1;
+    private static final int SLOT_SIZE = 32;
+    private static final int HASH = 0;
+    private static final int SEGMENT = 8;
+    private static final int OFFSET = 12;
+    private static final int LENGTH = 16;
+    private static final int CREATED_AT = 24;
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private int tombstones;
+
+    DiskPageIndex(int maxEntries) {
+        int capacity = 16;
+        while (capacity < maxEntries * 4L / 3 + 1) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * Url hashes are never EMPTY or TOMBSTONE, so those two values can mark slots.
+     */
+    static long normalize(long hash) {
+        return hash == EMPTY || hash == TOMBSTONE ? 1 : hash;
+    }
+
+    /**
+     * @return the slot holding {@code hash}, or -1.
+     */
+    int find(long hash) {
+        int slot = (int) (mix(hash) & (capacity - 1));
+        for (int probes = 0; probes < capacity; probes++) {
+            final long current = slots.getLong(slot * SLOT_SIZE + HASH);
+            if (current == EMPTY) {
+                return -1;
+            }
+            if (current == hash) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Insert or replace the location of {@code hash}. Returns false when the index is full.
+     */
+    boolean put(long hash, int segment, int offset, int length, long createdAt) {
+        int slot = find(hash);
+        if (slot < 0) {
+            if (size + tombstones + 1 > capacity * 3L / 4) {
+                if (size + 1 > capacity * 3L / 4) {
+                    return false;
+                }
+                rehash();
+            }
+            slot = freeSlot(hash);
+            if (slots.getLong(slot * SLOT_SIZE + HASH) == TOMBSTONE) {
+                tombstones--;
+            }
+            size++;
+        }
+        final int base = slot * SLOT_SIZE;
+        slots.putLong(base + HASH, hash);
+        slots.putInt(base + SEGMENT, segment);
+        slots.putInt(base + OFFSET, offset);
+        slots.putInt(base + LENGTH, length);
+        slots.putLong(base + CREATED_AT, createdAt);
+        return true;
+    }
+
+    void remove(int slot) {
+        slots.putLong(slot * SLOT_SIZE + HASH, TOMBSTONE);
+        size--;
+        tombstones++;
+    }
+
+    int segment(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + SEGMENT);
+    }
+
+    int offset(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + OFFSET);
+    }
+
+    int length(int slot) {
+        return slots.getInt(slot * SLOT_SIZE + LENGTH);
+    }
+
+    long createdAt(int slot) {
+        return slots.getLong(slot * SLOT_SIZE + CREATED_AT);
+    }
+
+    boolean isLive(int slot) {
+        final long hash = slots.getLong(slot * SLOT_SIZE + HASH);
+        return hash != EMPTY && hash != TOMBSTONE;
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int freeSlot(long hash) {
+        int slot = (int) (mix(hash) & (capacity - 1));
+        while (isLive(slot)) {
+            slot = (slot + 1) & (capacity - 1);
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        final ByteBuffer old = slots;
+        final int oldCapacity = capacity;
+        allocate(capacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            final int base = slot * SLOT_SIZE;
+            final long hash = old.getLong(base + HASH);
+            if (hash != EMPTY && hash != TOMBSTONE) {
+                put(hash, old.getInt(base + SEGMENT), old.getInt(base + OFFSET), old.getInt(base + LENGTH),
+                        old.getLong(base + CREATED_AT));
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        this.capacity = capacity;
+        this.slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        this.size = 0;
+        this.tombstones = 0;
+    }
+
+    private static long mix(long hash) {
+        return hash ^ (hash >>> 32);
+    }
+}
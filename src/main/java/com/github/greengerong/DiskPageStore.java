@@ -0,0 +1,528 @@
+package com.github.greengerong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.Header;
+import org.apache.http.message.BasicHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Persistent second-tier page store: gzip compressed pages are appended to memory-mapped segment files, and an
+ * off-heap {@link DiskPageIndex} maps each url hash to its latest record.
+ * <p/>
+ * Records carry their own url, creation time and checksum, so the index is rebuilt by scanning the segments when the
+ * store is opened again after a restart. Removals are appended as tombstone records. Once all segments are full the
+ * oldest one is dropped, and a background task compacts segments that are mostly dead records by moving their live
+ * records to the active segment. Pages read back are slices of the mapped segment, served without a heap copy of
+ * the whole body.
+ */
+public class DiskPageStore {
+    private final static Logger log = LoggerFactory.getLogger(DiskPageStore.class);
+    private static final int MAGIC = 0x50524552;
+    private static final int RECORD_HEADER_SIZE = 12;
+    private static final int TOMBSTONE_STATUS = 0;
+    private static final int WRITE_QUEUE_SIZE = 256;
+    private static final int CHECKSUM_CHUNK_SIZE = 8 * 1024;
+    private static final double COMPACTION_THRESHOLD = 0.5;
+    private static final Pattern SEGMENT_FILE = Pattern.compile("segment-(\\d+)\\.dat");
+    private final File directory;
+    private final int segmentSize;
+    private final int maxSegments;
+    private final long ttlMillis;
+    private final long compactionIntervalMillis;
+    private final DiskPageIndex index;
+    private final TreeMap<Integer, Segment> segments = Maps.newTreeMap();
+    private final ThreadPoolExecutor writer;
+    private final ScheduledExecutorService compactor;
+    private Segment active;
+
+    public DiskPageStore(File directory, int segmentSize, int maxSegments, int maxEntries, long ttlMillis,
+                         long compactionIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maxSegments = Math.max(maxSegments, 2);
+        this.ttlMillis = ttlMillis;
+        this.compactionIntervalMillis = compactionIntervalMillis;
+        this.index = new DiskPageIndex(maxEntries);
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("prerender-disk-writer-%d").setDaemon(true).build(),
+                new ThreadPoolExecutor.DiscardPolicy());
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("prerender-disk-compactor-%d").setDaemon(true).build());
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can not create disk cache directory " + directory);
+        }
+        load();
+    }
+
+    public void start() {
+        if (compactionIntervalMillis > 0) {
+            compactor.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        log.error("Disk cache compaction error", e);
+                    }
+                }
+            }, compactionIntervalMillis, compactionIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public PrerenderedPage get(String url) {
+        final byte[] key = url.getBytes(Charsets.UTF_8);
+        final long hash = hash(key);
+        final ByteBuffer record;
+        synchronized (this) {
+            final int slot = index.find(hash);
+            if (slot < 0) {
+                return null;
+            }
+            if (isExpired(index.createdAt(slot))) {
+                removeSlot(slot);
+                return null;
+            }
+            record = slice(segments.get(index.segment(slot)).buffer, index.offset(slot), index.length(slot));
+        }
+        return readPage(record, key);
+    }
+
+    /**
+     * Compress and append the page in the background. Writes are dropped, not queued without bound, when the
+     * writer falls behind.
+     */
+    public void put(final String url, final PrerenderedPage page) {
+        writer.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(url, page);
+                } catch (Exception e) {
+                    log.error(String.format("Can not write %s to disk cache", url), e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Append a tombstone for the page on the calling thread, so it is gone from {@link #get} on return. A
+     * {@link #put} of the same url still queued to the writer lands after it and brings the page back.
+     */
+    public void remove(String url) {
+        try {
+            append(encodeTombstone(url.getBytes(Charsets.UTF_8)));
+        } catch (IOException e) {
+            log.error(String.format("Can not remove %s from disk cache", url), e);
+        }
+    }
+
+    /**
+     * Remove every page whose url starts with {@code prefix}. The index only keeps url hashes, so this reads the url
+     * of every live record. The tombstones are appended on the calling thread, not queued to the writer, which
+     * drops work when it falls behind.
+     *
+     * @return the number of pages removed.
+     */
+    public int removePrefix(String prefix) {
+        final List<String> urls = Lists.newArrayList();
+        synchronized (this) {
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (!index.isLive(slot)) {
+                    continue;
+                }
+                final String url = readKey(slice(segments.get(index.segment(slot)).buffer, index.offset(slot),
+                        index.length(slot)));
+                if (url.startsWith(prefix)) {
+                    urls.add(url);
+                }
+            }
+        }
+        for (String url : urls) {
+            try {
+                append(encodeTombstone(url.getBytes(Charsets.UTF_8)));
+            } catch (IOException e) {
+                log.error(String.format("Can not remove %s from disk cache", url), e);
+            }
+        }
+        return urls.size();
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    public void close() {
+        writer.shutdown();
+        compactor.shutdownNow();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+            }
+        }
+    }
+
+    /**
+     * Synchronously compress and append a page. Pages whose body is in an encoding other than gzip are not stored.
+     */
+    void write(String url, PrerenderedPage page) throws IOException {
+        final PrerenderedPage compressed = page.gzip();
+        if (PrerenderedPage.GZIP.equals(compressed.getContentEncoding())) {
+            append(encode(url.getBytes(Charsets.UTF_8), compressed));
+        }
+    }
+
+    /**
+     * Move the live records of mostly-dead segments to the active segment and delete those segments, then drop the
+     * oldest segments if that went past the segment cap.
+     */
+    synchronized void compact() throws IOException {
+        for (Segment segment : Lists.newArrayList(segments.values())) {
+            if (segment != active && segment.liveBytes < segment.writePosition * COMPACTION_THRESHOLD) {
+                relocate(segment);
+            }
+        }
+        dropOldestSegments();
+    }
+
+    /**
+     * Move the live records of a segment, and the tombstones still hiding a page of an older segment from the next
+     * scan, to the active segment.
+     */
+    private void relocate(Segment segment) throws IOException {
+        int position = 0;
+        while (position < segment.writePosition) {
+            final int length = segment.buffer.getInt(position + 4);
+            final ByteBuffer record = slice(segment.buffer, position, length);
+            final long hash = readHash(record);
+            final int slot = index.find(hash);
+            if (record.getInt(RECORD_HEADER_SIZE + 16) == TOMBSTONE_STATUS) {
+                if (slot < 0 && segments.firstKey() < segment.id
+                        && !isExpired(record.getLong(RECORD_HEADER_SIZE + 8))) {
+                    moveToActive(record);
+                }
+            } else if (slot >= 0 && index.segment(slot) == segment.id && index.offset(slot) == position) {
+                if (isExpired(index.createdAt(slot))) {
+                    removeSlot(slot);
+                } else {
+                    final int offset = moveToActive(record);
+                    index.put(hash, active.id, offset, length, index.createdAt(slot));
+                    active.liveBytes += length;
+                    segment.liveBytes -= length;
+                }
+            }
+            position += length;
+        }
+        deleteSegment(segment);
+    }
+
+    /**
+     * Copy a record to the end of the active segment, opening a new one when it is full.
+     *
+     * @return the offset of the copy in the active segment.
+     */
+    private int moveToActive(ByteBuffer record) throws IOException {
+        if (active.writePosition + record.remaining() > active.capacity) {
+            active = newSegment();
+        }
+        final int offset = active.writePosition;
+        active.put(record);
+        return offset;
+    }
+
+    private synchronized void append(byte[] record) throws IOException {
+        if (record.length > segmentSize) {
+            return;
+        }
+        if (active.writePosition + record.length > active.capacity) {
+            active = newSegment();
+            dropOldestSegments();
+        }
+        final int offset = active.writePosition;
+        active.put(ByteBuffer.wrap(record));
+        apply(ByteBuffer.wrap(record), active, offset);
+    }
+
+    /**
+     * Update the index for a record at {@code offset} of {@code segment}, either just appended or found by a scan.
+     */
+    private void apply(ByteBuffer record, Segment segment, int offset) {
+        final long hash = readHash(record);
+        final long createdAt = record.getLong(RECORD_HEADER_SIZE + 8);
+        final int status = record.getInt(RECORD_HEADER_SIZE + 16);
+        final int slot = index.find(hash);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+        if (status == TOMBSTONE_STATUS || isExpired(createdAt)) {
+            return;
+        }
+        if (index.put(hash, segment.id, offset, record.remaining(), createdAt)) {
+            segment.liveBytes += record.remaining();
+        } else {
+            log.warn("Disk cache index is full, page is not indexed");
+        }
+    }
+
+    private void removeSlot(int slot) {
+        final Segment segment = segments.get(index.segment(slot));
+        if (segment != null) {
+            segment.liveBytes -= index.length(slot);
+        }
+        index.remove(slot);
+    }
+
+    private void dropOldestSegments() {
+        while (segments.size() > maxSegments) {
+            final Segment oldest = segments.firstEntry().getValue();
+            for (int slot = 0; slot < index.capacity(); slot++) {
+                if (index.isLive(slot) && index.segment(slot) == oldest.id) {
+                    index.remove(slot);
+                }
+            }
+            deleteSegment(oldest);
+        }
+    }
+
+    private void deleteSegment(Segment segment) {
+        segments.remove(segment.id);
+        if (!segment.file.delete()) {
+            log.warn(String.format("Can not delete disk cache segment %s", segment.file));
+        }
+    }
+
+    private boolean isExpired(long createdAt) {
+        return System.currentTimeMillis() - createdAt >= ttlMillis;
+    }
+
+    private void load() throws IOException {
+        final File[] files = directory.listFiles();
+        final Map<Integer, File> segmentFiles = Maps.newTreeMap();
+        if (files != null) {
+            for (File file : files) {
+                final Matcher matcher = SEGMENT_FILE.matcher(file.getName());
+                if (matcher.matches()) {
+                    segmentFiles.put(Integer.valueOf(matcher.group(1)), file);
+                }
+            }
+        }
+        for (Map.Entry<Integer, File> entry : segmentFiles.entrySet()) {
+            final Segment segment = openSegment(entry.getKey(), entry.getValue());
+            segments.put(segment.id, segment);
+            scan(segment);
+            active = segment;
+        }
+        if (active == null) {
+            active = newSegment();
+        }
+        log.info(String.format("Disk cache opened with %d pages in %d segments", index.size(), segments.size()));
+    }
+
+    /**
+     * Index every valid record of a segment; the first record that is incomplete or fails its checksum marks the
+     * end of the data written before the store was closed.
+     */
+    private void scan(Segment segment) {
+        int position = 0;
+        while (position + RECORD_HEADER_SIZE <= segment.capacity) {
+            if (segment.buffer.getInt(position) != MAGIC) {
+                break;
+            }
+            final int length = segment.buffer.getInt(position + 4);
+            if (length < RECORD_HEADER_SIZE || position + length > segment.capacity) {
+                break;
+            }
+            final ByteBuffer record = slice(segment.buffer, position, length);
+            if (record.getInt(8) != checksum(record)) {
+                break;
+            }
+            apply(record, segment, position);
+            position += length;
+        }
+        segment.writePosition = position;
+    }
+
+    private Segment newSegment() throws IOException {
+        final int id = segments.isEmpty() ? 0 : segments.lastKey() + 1;
+        final Segment segment = openSegment(id, new File(directory, String.format("segment-%010d.dat", id)));
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(int id, File file) throws IOException {
+        final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            final int capacity = (int) Math.max(randomAccessFile.length(), segmentSize);
+            final MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            return new Segment(id, file, buffer, capacity);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private PrerenderedPage readPage(ByteBuffer record, byte[] key) {
+        final ByteBuffer in = record.duplicate();
+        in.position(RECORD_HEADER_SIZE + 8);
+        final long createdAt = in.getLong();
+        final int status = in.getInt();
+        final byte[] storedKey = readBytes(in);
+        if (!Arrays.equals(key, storedKey)) {
+            return null;
+        }
+        final Header[] headers = new Header[in.getInt()];
+        for (int i = 0; i < headers.length; i++) {
+            headers[i] = new BasicHeader(new String(readBytes(in), Charsets.UTF_8), new String(readBytes(in), Charsets.UTF_8));
+        }
+        final int bodyLength = in.getInt();
+        in.limit(in.position() + bodyLength);
+        return new PrerenderedPage(status, headers, in.slice(), PrerenderedPage.GZIP, createdAt);
+    }
+
+    private static String readKey(ByteBuffer record) {
+        final ByteBuffer in = record.duplicate();
+        in.position(RECORD_HEADER_SIZE + 8 + 8 + 4);
+        return new String(readBytes(in), Charsets.UTF_8);
+    }
+
+    private static byte[] encode(byte[] key, PrerenderedPage page) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeRecordStart(out, key, page.getCreatedAt(), page.getStatusCode());
+        out.writeInt(page.getHeaders().length);
+        for (Header header : page.getHeaders()) {
+            writeBytes(out, header.getName().getBytes(Charsets.UTF_8));
+            writeBytes(out, header.getValue().getBytes(Charsets.UTF_8));
+        }
+        writeBytes(out, toBytes(page.getBody()));
+        return seal(bytes.toByteArray());
+    }
+
+    private static byte[] encodeTombstone(byte[] key) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        writeRecordStart(out, key, System.currentTimeMillis(), TOMBSTONE_STATUS);
+        out.writeInt(0);
+        out.writeInt(0);
+        return seal(bytes.toByteArray());
+    }
+
+    private static void writeRecordStart(DataOutputStream out, byte[] key, long createdAt, int status) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(hash(key));
+        out.writeLong(createdAt);
+        out.writeInt(status);
+        writeBytes(out, key);
+    }
+
+    private static byte[] seal(byte[] record) {
+        final ByteBuffer buffer = ByteBuffer.wrap(record);
+        buffer.putInt(4, record.length);
+        buffer.putInt(8, checksum(buffer));
+        return record;
+    }
+
+    private static byte[] toBytes(ByteBuffer body) {
+        final byte[] content = new byte[body.remaining()];
+        body.get(content);
+        return content;
+    }
+
+    private static int checksum(ByteBuffer record) {
+        final CRC32 crc = new CRC32();
+        final ByteBuffer payload = record.duplicate();
+        payload.position(RECORD_HEADER_SIZE);
+        final byte[] chunk = new byte[CHECKSUM_CHUNK_SIZE];
+        while (payload.hasRemaining()) {
+            final int length = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+        return (int) crc.getValue();
+    }
+
+    private static long readHash(ByteBuffer record) {
+        return record.getLong(RECORD_HEADER_SIZE);
+    }
+
+    private static long hash(byte[] key) {
+        return DiskPageIndex.normalize(Hashing.murmur3_128().hashBytes(key).asLong());
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        final ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer in) {
+        final byte[] bytes = new byte[in.getInt()];
+        in.get(bytes);
+        return bytes;
+    }
+
+    private static class Segment {
+        private final int id;
+        private final File file;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int writePosition;
+        private long liveBytes;
+
+        Segment(int id, File file, MappedByteBuffer buffer, int capacity) {
+            this.id = id;
+            this.file = file;
+            this.buffer = buffer;
+            this.capacity = capacity;
+        }
+
+        void put(ByteBuffer record) {
+            final ByteBuffer target = buffer.duplicate();
+            target.position(writePosition);
+            target.put(record.duplicate());
+            writePosition = target.position();
+        }
+    }
+}
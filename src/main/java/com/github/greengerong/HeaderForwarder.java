@@ -0,0 +1,132 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import org.apache.http.Header;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
+
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.http.HttpHeaders.HOST;
+
+/**
+ * Decides which headers cross the proxy, with case insensitive lookup tables built once.
+ * <p/>
+ * Hop-by-hop headers (http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html) never cross it. Request headers can
+ * further be limited to a whitelist and filtered by a blacklist, e.g. to keep cookies and tracking headers away from
+ * the prerender service. Copying allocates no collections beyond what the servlet and http client APIs hand out.
+ */
+public class HeaderForwarder {
+    private static final List<String> HOP_BY_HOP_HEADERS = ImmutableList.of("Connection", "Keep-Alive",
+            "Proxy-Authenticate", "Proxy-Authorization", "TE", "Trailers", "Transfer-Encoding", "Upgrade");
+    private static final List<String> PER_CLIENT_RESPONSE_HEADERS = ImmutableList.of("Set-Cookie", "Set-Cookie2",
+            "Authentication-Info", "Proxy-Authentication-Info");
+    private final CaseInsensitiveStringSet hopByHopHeaders;
+    private final CaseInsensitiveStringSet perClientResponseHeaders;
+    private final CaseInsensitiveStringSet skippedRequestHeaders;
+    private final CaseInsensitiveStringSet requestHeaderWhitelist;
+
+    /**
+     * @param requestHeaderWhitelist the only request headers forwarded, or null to forward any
+     * @param requestHeaderBlacklist request headers never forwarded, or null
+     */
+    public HeaderForwarder(Collection<String> requestHeaderWhitelist, Collection<String> requestHeaderBlacklist) {
+        this.hopByHopHeaders = new CaseInsensitiveStringSet(HOP_BY_HOP_HEADERS);
+        this.perClientResponseHeaders = new CaseInsensitiveStringSet(PER_CLIENT_RESPONSE_HEADERS);
+        final List<String> skipped = Lists.newArrayList(HOP_BY_HOP_HEADERS);
+        // the content length of the proxy request is set by its entity
+        skipped.add(CONTENT_LENGTH);
+        if (requestHeaderBlacklist != null) {
+            skipped.addAll(requestHeaderBlacklist);
+        }
+        this.skippedRequestHeaders = new CaseInsensitiveStringSet(skipped);
+        this.requestHeaderWhitelist = requestHeaderWhitelist != null
+                ? new CaseInsensitiveStringSet(requestHeaderWhitelist) : null;
+    }
+
+    public boolean isForwardedRequestHeader(String headerName) {
+        return !skippedRequestHeaders.contains(headerName)
+                && (requestHeaderWhitelist == null || requestHeaderWhitelist.contains(headerName));
+    }
+
+    public boolean isForwardedResponseHeader(String headerName) {
+        return !hopByHopHeaders.contains(headerName);
+    }
+
+    /**
+     * Copy the forwarded headers of the servlet client to the proxy request, with Host rewritten to
+     * {@code hostHeader} so a prerender service behind virtual hosting gets the request.
+     */
+    public void copyRequestHeaders(HttpServletRequest servletRequest, HttpRequest proxyRequest, String hostHeader) {
+        final Enumeration<?> headerNames = servletRequest.getHeaderNames();
+        while (headerNames.hasMoreElements()) {
+            final String headerName = (String) headerNames.nextElement();
+            if (!isForwardedRequestHeader(headerName)) {
+                continue;
+            }
+            if (HOST.equalsIgnoreCase(headerName)) {
+                proxyRequest.addHeader(headerName, hostHeader);
+                continue;
+            }
+            final Enumeration<?> headerValues = servletRequest.getHeaders(headerName);
+            while (headerValues.hasMoreElements()) {
+                proxyRequest.addHeader(headerName, (String) headerValues.nextElement());
+            }
+        }
+    }
+
+    /**
+     * Copy the end-to-end headers of the proxied response to the servlet client.
+     */
+    public void copyResponseHeaders(HttpResponse proxyResponse, HttpServletResponse servletResponse) {
+        for (Header header : proxyResponse.getAllHeaders()) {
+            if (isForwardedResponseHeader(header.getName())) {
+                servletResponse.addHeader(header.getName(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * The end-to-end headers of the proxied response, e.g. to keep with a cached page.
+     */
+    public Header[] getForwardedResponseHeaders(HttpResponse proxyResponse) {
+        final Header[] headers = proxyResponse.getAllHeaders();
+        int forwarded = 0;
+        for (Header header : headers) {
+            if (isForwardedResponseHeader(header.getName())) {
+                forwarded++;
+            }
+        }
+        if (forwarded == headers.length) {
+            return headers;
+        }
+        final Header[] result = new Header[forwarded];
+        int index = 0;
+        for (Header header : headers) {
+            if (isForwardedResponseHeader(header.getName())) {
+                result[index++] = header;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * The response headers that may be replayed to other clients, i.e. without cookies and authentication state set
+     * for the client that got the render.
+     */
+    public Header[] getSharedResponseHeaders(Header[] headers) {
+        final List<Header> shared = Lists.newArrayListWithCapacity(headers.length);
+        for (Header header : headers) {
+            if (!perClientResponseHeaders.contains(header.getName())) {
+                shared.add(header);
+            }
+        }
+        return shared.size() == headers.length ? headers : shared.toArray(new Header[shared.size()]);
+    }
+}
@@ -0,0 +1,87 @@
+package com.github.greengerong;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When to send a hedged prerender call, and how many of them to allow.
+ * <p/>
+ * The hedge delay is the configured percentile of the latencies of recent successful calls, never shorter than the
+ * minimum delay, which is also used until enough calls have been seen. The budget is a token bucket: every primary
+ * call deposits budget percent of a token and every hedge spends a whole one, so hedges never add more than that
+ * share of load, however slow the prerender service gets.
+ */
+public class HedgePolicy {
+    private static final int SAMPLES = 256;
+    private static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_EVERY = 32;
+    private static final double MAX_TOKENS = 10;
+    private final int percentile;
+    private final long minDelayNanos;
+    private final double tokensPerCall;
+    private final long[] latencies = new long[SAMPLES];
+    private int samples;
+    private int next;
+    private int sinceRecompute;
+    private long delayNanos;
+    private double tokens;
+    private long hedged;
+
+    public HedgePolicy(int percentile, long minDelayMillis, int budgetPercent) {
+        this.percentile = Math.min(Math.max(percentile, 1), 100);
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+        this.tokensPerCall = Math.max(budgetPercent, 0) / 100d;
+        this.delayNanos = minDelayNanos;
+    }
+
+    /**
+     * Record the latency of a successful call.
+     */
+    public synchronized void recordLatency(long latencyNanos) {
+        latencies[next] = latencyNanos;
+        next = (next + 1) % SAMPLES;
+        samples = Math.min(samples + 1, SAMPLES);
+        if (++sinceRecompute >= RECOMPUTE_EVERY && samples >= MIN_SAMPLES) {
+            sinceRecompute = 0;
+            final long[] sorted = Arrays.copyOf(latencies, samples);
+            Arrays.sort(sorted);
+            final int index = (int) Math.ceil(percentile / 100d * samples) - 1;
+            delayNanos = Math.max(minDelayNanos, sorted[Math.max(index, 0)]);
+        }
+    }
+
+    /**
+     * How long to wait for the primary call before hedging it.
+     */
+    public synchronized long getDelayNanos() {
+        return delayNanos;
+    }
+
+    /**
+     * Count a primary call towards the budget.
+     */
+    public synchronized void onCall() {
+        tokens = Math.min(MAX_TOKENS, tokens + tokensPerCall);
+    }
+
+    /**
+     * Take a hedge from the budget.
+     *
+     * @return false when the budget is spent.
+     */
+    public synchronized boolean tryHedge() {
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        hedged++;
+        return true;
+    }
+
+    /**
+     * Hedged calls sent since the policy was created.
+     */
+    public synchronized long getHedgedCount() {
+        return hedged;
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.greengerong;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+
+/**
+ * Base for {@link HtmlTransformer} stages that work on html tokens: the chars written to it are split into text,
+ * markup (tags, comments, doctype) and the raw text of script and style elements, whatever the chunk boundaries.
+ * <p/>
+ * Text and raw text are handed on as they arrive; only the markup being read is buffered, so memory is bounded by
+ * the longest tag or comment. Every callback writes to {@link #out} unchanged by default; override those to rewrite.
+ */
+public abstract class HtmlTokenWriter extends Writer {
+    private static final int TEXT = 0;
+    private static final int MARKUP = 1;
+    private static final int RAW_TEXT = 2;
+    protected final Writer out;
+    private final StringBuilder markup = new StringBuilder(128);
+    private int state = TEXT;
+    private char quote;
+    private char lastNonSpace;
+    private String rawTextEnd;
+    private int rawTextEndMatched;
+
+    protected HtmlTokenWriter(Writer out) {
+        this.out = out;
+    }
+
+    /**
+     * Text between tags, possibly in several calls.
+     */
+    protected void text(char[] chars, int offset, int length) throws IOException {
+        out.write(chars, offset, length);
+    }
+
+    /**
+     * Content of a script or style element, possibly in several calls, between the {@link #markup} calls of its
+     * start and end tags.
+     */
+    protected void rawText(char[] chars, int offset, int length) throws IOException {
+        out.write(chars, offset, length);
+    }
+
+    /**
+     * A whole tag, comment or doctype, from its "&lt;" to its "&gt;".
+     */
+    protected void markup(String markup) throws IOException {
+        out.write(markup);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) throws IOException {
+        final int end = offset + length;
+        int runStart = offset;
+        for (int i = offset; i < end; i++) {
+            final char c = chars[i];
+            if (state == TEXT) {
+                if (c == '<') {
+                    text(chars, runStart, i - runStart);
+                    startMarkup(c);
+                }
+            } else if (state == MARKUP) {
+                if (readMarkup(c)) {
+                    runStart = i + 1;
+                }
+            } else if (rawTextEndMatched == 0) {
+                if (c == '<') {
+                    rawText(chars, runStart, i - runStart);
+                    markup.setLength(0);
+                    markup.append(c);
+                    rawTextEndMatched = 1;
+                }
+            } else if (Character.toLowerCase(c) == rawTextEnd.charAt(rawTextEndMatched)) {
+                markup.append(c);
+                if (++rawTextEndMatched == rawTextEnd.length()) {
+                    state = MARKUP;
+                    quote = 0;
+                    lastNonSpace = c;
+                }
+            } else {
+                emitPendingMarkup();
+                if (c == '<') {
+                    markup.setLength(0);
+                    markup.append(c);
+                    rawTextEndMatched = 1;
+                } else {
+                    runStart = i;
+                }
+            }
+        }
+        if (state == TEXT && runStart < end) {
+            text(chars, runStart, end - runStart);
+        } else if (state == RAW_TEXT && rawTextEndMatched == 0 && runStart < end) {
+            rawText(chars, runStart, end - runStart);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Hand on markup left unfinished at the end of the page as text, then close {@link #out}.
+     */
+    @Override
+    public void close() throws IOException {
+        if (state == MARKUP || (state == RAW_TEXT && rawTextEndMatched > 0)) {
+            emitPendingMarkup();
+        }
+        out.close();
+    }
+
+    private void startMarkup(char c) {
+        state = MARKUP;
+        markup.setLength(0);
+        markup.append(c);
+        quote = 0;
+        lastNonSpace = c;
+    }
+
+    /**
+     * Add a char to the markup being read.
+     *
+     * @return true when it ended the markup, or showed it was text after all.
+     */
+    private boolean readMarkup(char c) throws IOException {
+        if (markup.length() == 1 && c == '<') {
+            // "<<a>": the first one is text
+            text(markup.toString().toCharArray(), 0, 1);
+            return false;
+        }
+        markup.append(c);
+        if (markup.length() == 2 && !Character.isLetter(c) && c != '/' && c != '!' && c != '?') {
+            // "a < b": not a tag
+            state = TEXT;
+            emitPendingMarkup();
+            return true;
+        }
+        if (markup.length() >= 4 && markup.charAt(1) == '!' && markup.charAt(2) == '-' && markup.charAt(3) == '-') {
+            if (markup.length() < 7 || c != '>' || markup.charAt(markup.length() - 2) != '-'
+                    || markup.charAt(markup.length() - 3) != '-') {
+                return false;
+            }
+        } else if (quote != 0) {
+            if (c == quote) {
+                quote = 0;
+                lastNonSpace = c;
+            }
+            return false;
+        } else if ((c == '"' || c == '\'') && lastNonSpace == '=') {
+            quote = c;
+            return false;
+        } else if (c != '>') {
+            if (!Character.isWhitespace(c)) {
+                lastNonSpace = c;
+            }
+            return false;
+        }
+        final String tag = markup.toString();
+        final String name = isEndTag(tag) ? null : getTagName(tag);
+        if ("script".equals(name) || "style".equals(name)) {
+            state = RAW_TEXT;
+            rawTextEnd = "</" + name;
+            rawTextEndMatched = 0;
+        } else {
+            state = TEXT;
+        }
+        markup(tag);
+        return true;
+    }
+
+    private void emitPendingMarkup() throws IOException {
+        final char[] pending = markup.toString().toCharArray();
+        if (state == RAW_TEXT) {
+            rawText(pending, 0, pending.length);
+            rawTextEndMatched = 0;
+        } else {
+            state = TEXT;
+            text(pending, 0, pending.length);
+        }
+        markup.setLength(0);
+    }
+
+    /**
+     * The lower cased element name of a start or end tag, or null for a comment, doctype or processing instruction.
+     */
+    protected static String getTagName(String markup) {
+        final int start = isEndTag(markup) ? 2 : 1;
+        int end = start;
+        while (end < markup.length() && (Character.isLetterOrDigit(markup.charAt(end)) || markup.charAt(end) == '-'
+                || markup.charAt(end) == ':')) {
+            end++;
+        }
+        if (end == start || !Character.isLetter(markup.charAt(start))) {
+            return null;
+        }
+        return markup.substring(start, end).toLowerCase(Locale.ENGLISH);
+    }
+
+    protected static boolean isEndTag(String markup) {
+        return markup.startsWith("</");
+    }
+
+    protected static boolean isComment(String markup) {
+        return markup.startsWith("<!--");
+    }
+
+    /**
+     * The value of an attribute of a start tag, unquoted but not entity decoded, "" for an attribute without a value,
+     * or null when the tag does not have it.
+     */
+    protected static String getAttribute(String markup, String attributeName) {
+        int i = markup.startsWith("</") ? 2 : 1;
+        final int end = markup.endsWith(">") ? markup.length() - 1 : markup.length();
+        while (i < end && !Character.isWhitespace(markup.charAt(i))) {
+            i++;
+        }
+        while (i < end) {
+            while (i < end && (Character.isWhitespace(markup.charAt(i)) || markup.charAt(i) == '/')) {
+                i++;
+            }
+            final int nameStart = i;
+            while (i < end && markup.charAt(i) != '=' && markup.charAt(i) != '/'
+                    && !Character.isWhitespace(markup.charAt(i))) {
+                i++;
+            }
+            final String name = markup.substring(nameStart, i);
+            while (i < end && Character.isWhitespace(markup.charAt(i))) {
+                i++;
+            }
+            String value = "";
+            if (i < end && markup.charAt(i) == '=') {
+                i++;
+                while (i < end && Character.isWhitespace(markup.charAt(i))) {
+                    i++;
+                }
+                if (i < end && (markup.charAt(i) == '"' || markup.charAt(i) == '\'')) {
+                    final int close = markup.indexOf(markup.charAt(i), i + 1);
+                    final int valueEnd = close >= 0 && close < end ? close : end;
+                    value = markup.substring(i + 1, valueEnd);
+                    i = valueEnd + 1;
+                } else {
+                    final int valueStart = i;
+                    while (i < end && !Character.isWhitespace(markup.charAt(i))) {
+                        i++;
+                    }
+                    value = markup.substring(valueStart, i);
+                }
+            }
+            if (name.length() > 0 && name.equalsIgnoreCase(attributeName)) {
+                return value;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,24 @@
+package com.github.greengerong;
+
+import java.io.Writer;
+
+/**
+ * A streaming rewrite of rendered html, e.g. injecting a canonical link, removing scripts or rewriting absolute urls.
+ * <p/>
+ * Configure "htmlTransformers" with a comma separated list of class names, each with a public no-arg constructor;
+ * they run in that order, each one writing into the next. A page is transformed once, as it is read from the
+ * prerender service: before it is cached, and before {@link PreRenderEventHandler#afterRender} sees it. A single
+ * instance is shared by every request, so keep per-page state in the returned writer. {@link HtmlTokenWriter} splits
+ * the html into text and tags for stages that work on markup.
+ */
+public interface HtmlTransformer {
+
+    /**
+     * Wrap {@code output} so the html written to the returned writer reaches it transformed. The page is written in
+     * chunks that may end anywhere, even inside a tag, and the returned writer is closed at the end of the page; it
+     * must then close {@code output}.
+     *
+     * @param url the page url, as it is sent to the prerender service.
+     */
+    Writer transform(String url, Writer output);
+}
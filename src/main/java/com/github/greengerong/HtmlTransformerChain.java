@@ -0,0 +1,52 @@
+package com.github.greengerong;
+
+import com.google.common.collect.ImmutableList;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.List;
+
+/**
+ * The configured {@link HtmlTransformer}s, applied in order while a page is copied from a reader to a writer with a
+ * fixed size buffer.
+ */
+public class HtmlTransformerChain {
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private final List<HtmlTransformer> transformers;
+
+    public HtmlTransformerChain(List<HtmlTransformer> transformers) {
+        this.transformers = ImmutableList.copyOf(transformers);
+    }
+
+    public List<HtmlTransformer> getTransformers() {
+        return transformers;
+    }
+
+    /**
+     * Wrap {@code output} so that html written to the result goes through every stage before reaching it.
+     */
+    public Writer transform(String url, Writer output) {
+        Writer writer = output;
+        for (int i = transformers.size() - 1; i >= 0; i--) {
+            writer = transformers.get(i).transform(url, writer);
+        }
+        return writer;
+    }
+
+    /**
+     * Copy the html of {@code input} to {@code output} through every stage, then close {@code output}.
+     */
+    public void transform(String url, Reader input, Writer output) throws IOException {
+        final Writer writer = transform(url, output);
+        final char[] buffer = new char[BUFFER_SIZE];
+        try {
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                writer.write(buffer, 0, read);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.greengerong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.conn.HttpClientConnectionManager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Periodically closes pooled connections that expired or stayed idle longer than the configured timeout, so a
+ * request never leases a connection the prerender service already dropped.
+ */
+public class IdleConnectionEvictor {
+    private final HttpClientConnectionManager connectionManager;
+    private final long idleTimeoutMillis;
+    private final ScheduledExecutorService executor;
+
+    public IdleConnectionEvictor(HttpClientConnectionManager connectionManager, long idleTimeoutMillis) {
+        this.connectionManager = connectionManager;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("prerender-connection-evictor-%d").setDaemon(true).build());
+    }
+
+    public void start() {
+        final long period = Math.max(idleTimeoutMillis / 2, 1);
+        executor.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                connectionManager.closeExpiredConnections();
+                connectionManager.closeIdleConnections(idleTimeoutMillis, TimeUnit.MILLISECONDS);
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,258 @@
+package com.github.greengerong;
+
+import com.google.common.base.Supplier;
+import com.google.common.collect.Lists;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Keeps the metrics in memory and publishes them as the read-only attributes of one MBean,
+ * "com.github.greengerong:type=PrerenderMetrics,name=&lt;metricsName&gt;".
+ * <p/>
+ * A counter is an attribute named "name.tag". A timer is a set of "name.tag.count", ".meanMillis", ".maxMillis",
+ * ".p50Millis", ".p95Millis" and ".p99Millis" attributes; percentiles come from power of two millisecond buckets,
+ * so they are upper bounds within a factor of two.
+ */
+public class JmxPrerenderMetrics implements PrerenderMetrics, DynamicMBean {
+    private final static Logger log = LoggerFactory.getLogger(JmxPrerenderMetrics.class);
+    public static final String DOMAIN = "com.github.greengerong";
+    private static final String[] TIMER_ATTRIBUTES = {"count", "meanMillis", "maxMillis", "p50Millis", "p95Millis",
+            "p99Millis"};
+    private final ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<String, Timer>();
+    private final ConcurrentMap<String, Supplier<? extends Number>> gauges =
+            new ConcurrentHashMap<String, Supplier<? extends Number>>();
+    private final ObjectName objectName;
+    private final MBeanServer mBeanServer;
+
+    public JmxPrerenderMetrics() {
+        this("prerender");
+    }
+
+    public JmxPrerenderMetrics(String name) {
+        this(name, ManagementFactory.getPlatformMBeanServer());
+    }
+
+    public JmxPrerenderMetrics(String name, MBeanServer mBeanServer) {
+        try {
+            this.objectName = new ObjectName(DOMAIN + ":type=PrerenderMetrics,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Invalid metrics name: " + name, e);
+        }
+        this.mBeanServer = mBeanServer;
+        try {
+            mBeanServer.registerMBean(this, objectName);
+        } catch (JMException e) {
+            log.warn(String.format("Can not register %s, prerender metrics are not published", objectName), e);
+        }
+    }
+
+    @Override
+    public void count(String name, String tag, long amount) {
+        final String key = key(name, tag);
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            final AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.addAndGet(amount);
+    }
+
+    @Override
+    public void time(String name, String tag, long nanos) {
+        final String key = key(name, tag);
+        Timer timer = timers.get(key);
+        if (timer == null) {
+            final Timer created = new Timer();
+            timer = timers.putIfAbsent(key, created);
+            if (timer == null) {
+                timer = created;
+            }
+        }
+        timer.record(nanos);
+    }
+
+    @Override
+    public void gauge(String name, Supplier<? extends Number> value) {
+        gauges.put(name, value);
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (mBeanServer.isRegistered(objectName)) {
+                mBeanServer.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            log.warn(String.format("Can not unregister %s", objectName), e);
+        }
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        final AtomicLong counter = counters.get(attribute);
+        if (counter != null) {
+            return counter.get();
+        }
+        final Supplier<? extends Number> gauge = gauges.get(attribute);
+        if (gauge != null) {
+            return gauge.get();
+        }
+        final int dot = attribute.lastIndexOf('.');
+        final Timer timer = dot > 0 ? timers.get(attribute.substring(0, dot)) : null;
+        if (timer != null) {
+            final String statistic = attribute.substring(dot + 1);
+            if ("count".equals(statistic)) {
+                return timer.getCount();
+            }
+            if ("meanMillis".equals(statistic)) {
+                return timer.getMeanMillis();
+            }
+            if ("maxMillis".equals(statistic)) {
+                return timer.getMaxMillis();
+            }
+            if ("p50Millis".equals(statistic)) {
+                return timer.getPercentileMillis(50);
+            }
+            if ("p95Millis".equals(statistic)) {
+                return timer.getPercentileMillis(95);
+            }
+            if ("p99Millis".equals(statistic)) {
+                return timer.getPercentileMillis(99);
+            }
+        }
+        throw new AttributeNotFoundException(attribute);
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] attributes) {
+        final AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            try {
+                list.add(new Attribute(attribute, getAttribute(attribute)));
+            } catch (AttributeNotFoundException e) {
+                log.trace(String.format("No prerender metric %s", attribute));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Prerender metrics are read-only: " + attribute.getName());
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) throws ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        final List<MBeanAttributeInfo> attributes = Lists.newArrayList();
+        for (String name : counters.keySet()) {
+            attributes.add(attributeInfo(name, Long.class, "Counter"));
+        }
+        for (Map.Entry<String, Supplier<? extends Number>> gauge : gauges.entrySet()) {
+            attributes.add(attributeInfo(gauge.getKey(), Number.class, "Gauge"));
+        }
+        for (String name : timers.keySet()) {
+            for (String statistic : TIMER_ATTRIBUTES) {
+                attributes.add(attributeInfo(name + "." + statistic,
+                        "count".equals(statistic) ? Long.class : Double.class, "Timer"));
+            }
+        }
+        return new MBeanInfo(getClass().getName(), "Prerender filter metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+    }
+
+    private static MBeanAttributeInfo attributeInfo(String name, Class<?> type, String description) {
+        return new MBeanAttributeInfo(name, type.getName(), description, true, false, false);
+    }
+
+    private static String key(String name, String tag) {
+        return tag != null ? name + "." + tag : name;
+    }
+
+    /**
+     * Count, total, max, and a histogram of power of two millisecond buckets: bucket i holds durations below 2^i ms.
+     */
+    static class Timer {
+        private static final int BUCKETS = 32;
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        void record(long nanos) {
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            final long millis = TimeUnit.NANOSECONDS.toMillis(Math.max(nanos, 0));
+            buckets.incrementAndGet(Math.min(64 - Long.numberOfLeadingZeros(millis), BUCKETS - 1));
+        }
+
+        long getCount() {
+            return count.get();
+        }
+
+        double getMeanMillis() {
+            final long calls = count.get();
+            return calls == 0 ? 0 : totalNanos.get() / 1e6 / calls;
+        }
+
+        double getMaxMillis() {
+            return maxNanos.get() / 1e6;
+        }
+
+        double getPercentileMillis(int percentile) {
+            final long calls = count.get();
+            if (calls == 0) {
+                return 0;
+            }
+            final long rank = (long) Math.ceil(percentile / 100d * calls);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets.get(i);
+                if (seen >= rank) {
+                    return Math.min(1L << i, getMaxMillis());
+                }
+            }
+            return getMaxMillis();
+        }
+    }
+}
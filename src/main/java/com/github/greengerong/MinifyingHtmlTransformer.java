@@ -0,0 +1,122 @@
+package com.github.greengerong;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Built-in {@link HtmlTransformer} that takes out what crawlers do not read, in one pass over the page: script
+ * elements (except JSON-LD structured data), comments, and runs of whitespace outside pre and textarea elements,
+ * which are collapsed to their first char.
+ * <p/>
+ * Each page reports the chars it read and the chars it removed as the "minify" counter, tagged "input" and "removed".
+ */
+public class MinifyingHtmlTransformer implements HtmlTransformer {
+    private static final String JSON_LD = "application/ld+json";
+    private final boolean stripScripts;
+    private final boolean collapseWhitespace;
+    private final boolean removeComments;
+    private final PrerenderMetrics metrics;
+
+    public MinifyingHtmlTransformer(boolean stripScripts, boolean collapseWhitespace, boolean removeComments,
+                                    PrerenderMetrics metrics) {
+        this.stripScripts = stripScripts;
+        this.collapseWhitespace = collapseWhitespace;
+        this.removeComments = removeComments;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Writer transform(String url, Writer output) {
+        return new MinifyingWriter(output);
+    }
+
+    private class MinifyingWriter extends HtmlTokenWriter {
+        private long input;
+        private long removed;
+        private boolean inScript;
+        private int preformatted;
+        private boolean lastWasSpace;
+
+        MinifyingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            input += length;
+            super.write(chars, offset, length);
+        }
+
+        @Override
+        protected void markup(String markup) throws IOException {
+            if (removeComments && isComment(markup)) {
+                removed += markup.length();
+                return;
+            }
+            final String name = getTagName(markup);
+            if (stripScripts && "script".equals(name)) {
+                if (isEndTag(markup) ? inScript : !isJsonLd(markup)) {
+                    inScript = !isEndTag(markup);
+                    removed += markup.length();
+                    return;
+                }
+            } else if ("pre".equals(name) || "textarea".equals(name)) {
+                preformatted = Math.max(0, preformatted + (isEndTag(markup) ? -1 : 1));
+            }
+            lastWasSpace = false;
+            out.write(markup);
+        }
+
+        @Override
+        protected void rawText(char[] chars, int offset, int length) throws IOException {
+            if (inScript) {
+                removed += length;
+            } else {
+                out.write(chars, offset, length);
+            }
+        }
+
+        @Override
+        protected void text(char[] chars, int offset, int length) throws IOException {
+            if (!collapseWhitespace || preformatted > 0) {
+                out.write(chars, offset, length);
+                return;
+            }
+            final int end = offset + length;
+            int runStart = offset;
+            for (int i = offset; i < end; i++) {
+                final boolean space = isSpace(chars[i]);
+                if (space && lastWasSpace) {
+                    if (i > runStart) {
+                        out.write(chars, runStart, i - runStart);
+                    }
+                    runStart = i + 1;
+                    removed++;
+                }
+                lastWasSpace = space;
+            }
+            if (end > runStart) {
+                out.write(chars, runStart, end - runStart);
+            }
+        }
+
+        private boolean isJsonLd(String scriptTag) {
+            final String type = getAttribute(scriptTag, "type");
+            return type != null && JSON_LD.equalsIgnoreCase(type.trim());
+        }
+
+        @Override
+        public void close() throws IOException {
+            super.close();
+            metrics.count("minify", "input", input);
+            metrics.count("minify", "removed", removed);
+        }
+    }
+
+    /**
+     * The whitespace html collapses; a non-breaking space is content.
+     */
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\n' || c == '\t' || c == '\r' || c == '\f';
+    }
+}
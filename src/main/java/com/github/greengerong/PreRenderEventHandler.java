@@ -6,6 +6,14 @@ import org.apache.http.HttpResponse;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+/**
+ * Hooks around the prerender proxy.
+ * <p/>
+ * A single instance is created when the filter is initialized and is shared by every request, so
+ * {@link #beforeRender} and {@link #afterRender} are called concurrently and must be thread safe. Keep per-request
+ * state in local variables or request attributes, not in fields. {@link #destroy()} is called once when the filter
+ * is destroyed.
+ */
 public interface PreRenderEventHandler {
 
     String beforeRender(HttpServletRequest clientRequest);
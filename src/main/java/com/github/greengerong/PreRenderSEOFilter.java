@@ -17,12 +17,31 @@ import com.google.common.collect.Maps;
 public class PreRenderSEOFilter implements Filter {
     public static final List<String> PARAMETER_NAMES = Lists.newArrayList("preRenderEventHandler", "proxy", "proxyPort",
             "prerenderToken", "forwardedURLHeader", "crawlerUserAgents", "extensionsToIgnore", "whitelist",
-            "blacklist", "prerenderServiceUrl", "protocol","socketTimeout");
+            "blacklist", "prerenderServiceUrl", "protocol","socketTimeout", "cacheMaxEntries", "cacheMaxBytes", "cacheTtl",
+            "asyncMode", "maxConnections", "maxConnectionsPerRoute", "connectionRequestTimeout", "connectTimeout",
+            "connectionTimeToLive", "keepAliveTimeout", "idleConnectionTimeout",
+            "coalesceRequests", "coalescingTimeout", "diskCacheDirectory", "diskCacheSegmentSize", "diskCacheMaxSegments",
+            "diskCacheMaxEntries", "diskCacheCompactionInterval", "cacheStaleWhileRevalidate",
+            "cacheStaleIfError", "refreshThreads", "refreshQueueSize", "concurrencyLimit", "concurrencyMinLimit",
+            "concurrencyMaxLimit", "concurrencyQueueSize", "concurrencyQueueTimeout", "concurrencyLatencyThreshold",
+            "circuitBreaker", "circuitBreakerWindowSize", "circuitBreakerMinimumCalls", "circuitBreakerFailureRateThreshold",
+            "circuitBreakerSlowCallRateThreshold", "circuitBreakerSlowCallDuration", "circuitBreakerOpenDuration",
+            "circuitBreakerHalfOpenProbes", "loadBalancer", "outlierConsecutiveFailures", "outlierEjectionTime",
+            "healthCheckInterval", "healthCheckPath", "hedgeDelayPercentile", "hedgeMinDelay", "hedgeBudgetPercent",
+            "hedgeMaxThreads",
+            "metricsRegistry", "metricsName", "cacheWarmUrls", "cacheWarmInterval", "cacheWarmRate",
+            "cacheWarmConcurrency", "canonicalizeUrls", "stripTrailingSlash", "ignoredQueryParams",
+            "requestHeaderWhitelist", "requestHeaderBlacklist", "htmlTransformers",
+            "minifyHtml");
     private PrerenderSeoService prerenderSeoService;
 
     @Override
     public void init(FilterConfig filterConfig) throws ServletException {
-        this.prerenderSeoService = new PrerenderSeoService(toMap(filterConfig));
+        try {
+            this.prerenderSeoService = new PrerenderSeoService(toMap(filterConfig));
+        } catch (RuntimeException e) {
+            throw new ServletException("Invalid prerender filter configuration", e);
+        }
     }
 
     @Override
@@ -1,37 +1,259 @@
 package com.github.greengerong;
 
 
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.Header;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.HttpClientConnectionManager;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
 import org.apache.http.impl.conn.DefaultProxyRoutePlanner;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import static org.apache.commons.lang.StringUtils.isNotBlank;
 
+/**
+ * Immutable snapshot of the filter configuration. Every init parameter is parsed and validated once, when the
+ * config is created, so the request path only reads final fields.
+ */
 public class PrerenderConfig {
     private final static Logger log = LoggerFactory.getLogger(PrerenderConfig.class);
     public static final String PRERENDER_IO_SERVICE_URL = "http://service.prerender.io/";
-    private Map<String, String> config;
+    public static final String PRERENDER_TOKEN_HEADER = "X-Prerender-Token";
+    private static final long DEFAULT_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    private static final long DEFAULT_CACHE_TTL = 60L * 60 * 1000;
+    private static final int DEFAULT_MAX_CONNECTIONS = 20;
+    private static final long DEFAULT_COALESCING_TIMEOUT = 30L * 1000;
+    private static final int DEFAULT_CONCURRENCY_QUEUE_SIZE = 10;
+    private static final long DEFAULT_CONCURRENCY_QUEUE_TIMEOUT = 1000;
+    private static final long DEFAULT_CONCURRENCY_LATENCY_THRESHOLD = 10L * 1000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE = 20;
+    private static final int DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS = 10;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD = 50;
+    private static final long DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION = 10L * 1000;
+    private static final long DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION = 30L * 1000;
+    private static final int DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES = 3;
+    private static final int DEFAULT_OUTLIER_CONSECUTIVE_FAILURES = 5;
+    private static final long DEFAULT_OUTLIER_EJECTION_TIME = 30L * 1000;
+    private static final long DEFAULT_HEDGE_MIN_DELAY = 100;
+    private static final int DEFAULT_HEDGE_BUDGET_PERCENT = 5;
+    private static final int DEFAULT_REFRESH_THREADS = 2;
+    private static final int DEFAULT_REFRESH_QUEUE_SIZE = 100;
+    private static final int DEFAULT_DISK_CACHE_SEGMENT_SIZE = 64 * 1024 * 1024;
+    private static final int DEFAULT_DISK_CACHE_MAX_SEGMENTS = 16;
+    private static final int DEFAULT_DISK_CACHE_MAX_ENTRIES = 500000;
+    private static final long DEFAULT_DISK_CACHE_COMPACTION_INTERVAL = 60L * 1000;
+    private static final double DEFAULT_CACHE_WARM_RATE = 1;
+    private static final String MINIFY_SCRIPTS = "scripts";
+    private static final String MINIFY_WHITESPACE = "whitespace";
+    private static final String MINIFY_COMMENTS = "comments";
+    private static final List<String> DEFAULT_IGNORED_QUERY_PARAMS = ImmutableList.of("utm_.*", "gclid", "dclid",
+            "fbclid", "msclkid", "yclid", "mc_cid", "mc_eid", "_ga", "_gl");
+    private static final int DEFAULT_CACHE_WARM_CONCURRENCY = 2;
+    private final String eventHandlerClassName;
+    private final List<String> htmlTransformerClassNames;
+    private final List<String> minifyHtml;
+    private final HttpHost proxy;
+    private final String socketTimeout;
+    private final Integer socketTimeoutMillis;
+    private final String prerenderToken;
+    private final Header prerenderTokenHeader;
+    private final String forwardedURLHeader;
+    private final String protocol;
+    private final List<String> crawlerUserAgents;
+    private final UserAgentMatcher crawlerUserAgentMatcher;
+    private final List<String> extensionsToIgnore;
+    private final CaseInsensitiveStringSet extensionsToIgnoreSet;
+    private final List<String> whitelist;
+    private final List<String> blacklist;
+    private final UrlPatternSet whitelistPatterns;
+    private final UrlPatternSet blacklistPatterns;
+    private final List<String> prerenderServiceUrls;
+    private final String prerenderServiceUrl;
+    private final int cacheMaxEntries;
+    private final long cacheMaxBytes;
+    private final long cacheTtl;
+    private final long cacheStaleWhileRevalidate;
+    private final long cacheStaleIfError;
+    private final int refreshThreads;
+    private final int refreshQueueSize;
+    private final boolean asyncMode;
+    private final int maxConnections;
+    private final int maxConnectionsPerRoute;
+    private final int connectionRequestTimeout;
+    private final int connectTimeout;
+    private final long connectionTimeToLive;
+    private final long keepAliveTimeout;
+    private final long idleConnectionTimeout;
+    private final boolean coalesceRequests;
+    private final long coalescingTimeout;
+    private final int concurrencyLimit;
+    private final int concurrencyMinLimit;
+    private final int concurrencyMaxLimit;
+    private final int concurrencyQueueSize;
+    private final long concurrencyQueueTimeout;
+    private final long concurrencyLatencyThreshold;
+    private final boolean circuitBreaker;
+    private final int circuitBreakerWindowSize;
+    private final int circuitBreakerMinimumCalls;
+    private final int circuitBreakerFailureRateThreshold;
+    private final int circuitBreakerSlowCallRateThreshold;
+    private final long circuitBreakerSlowCallDuration;
+    private final long circuitBreakerOpenDuration;
+    private final int circuitBreakerHalfOpenProbes;
+    private final String loadBalancer;
+    private final int outlierConsecutiveFailures;
+    private final long outlierEjectionTime;
+    private final long healthCheckInterval;
+    private final String healthCheckPath;
+    private final int hedgeDelayPercentile;
+    private final long hedgeMinDelay;
+    private final int hedgeBudgetPercent;
+    private final int hedgeMaxThreads;
+    private final String metricsRegistry;
+    private final String metricsName;
+    private final String diskCacheDirectory;
+    private final int diskCacheSegmentSize;
+    private final int diskCacheMaxSegments;
+    private final int diskCacheMaxEntries;
+    private final long diskCacheCompactionInterval;
+    private final List<String> cacheWarmUrls;
+    private final long cacheWarmInterval;
+    private final double cacheWarmRate;
+    private final int cacheWarmConcurrency;
+    private final boolean canonicalizeUrls;
+    private final boolean stripTrailingSlash;
+    private final List<String> ignoredQueryParams;
+    private final List<String> requestHeaderWhitelist;
+    private final List<String> requestHeaderBlacklist;
 
     public PrerenderConfig(Map<String, String> config) {
-        this.config = config;
+        this.eventHandlerClassName = config.get("preRenderEventHandler");
+        this.htmlTransformerClassNames = isNotBlank(config.get("htmlTransformers"))
+                ? parseTrimmedList(config.get("htmlTransformers")) : null;
+        this.minifyHtml = parseMinifyHtml(config.get("minifyHtml"));
+        this.proxy = parseProxy(config.get("proxy"), config.get("proxyPort"));
+        this.socketTimeout = config.get("socketTimeout");
+        this.socketTimeoutMillis = socketTimeout != null ? Integer.valueOf(socketTimeout) : null;
+        this.prerenderToken = config.get("prerenderToken");
+        this.prerenderTokenHeader = isNotBlank(prerenderToken) ? new BasicHeader(PRERENDER_TOKEN_HEADER, prerenderToken) : null;
+        this.forwardedURLHeader = config.get("forwardedURLHeader");
+        this.protocol = config.get("protocol");
+        this.crawlerUserAgents = parseCrawlerUserAgents(config.get("crawlerUserAgents"));
+        this.crawlerUserAgentMatcher = new UserAgentMatcher(crawlerUserAgents);
+        this.extensionsToIgnore = parseExtensionsToIgnore(config.get("extensionsToIgnore"));
+        this.extensionsToIgnoreSet = toExtensionSet(extensionsToIgnore);
+        this.whitelist = parseList(config.get("whitelist"));
+        this.blacklist = parseList(config.get("blacklist"));
+        this.whitelistPatterns = toPatternSet(whitelist);
+        this.blacklistPatterns = toPatternSet(blacklist);
+        this.prerenderServiceUrls = parsePrerenderServiceUrls(config.get("prerenderServiceUrl"));
+        this.prerenderServiceUrl = prerenderServiceUrls.get(0);
+        this.cacheMaxEntries = parseInt(config.get("cacheMaxEntries"), 0);
+        this.cacheMaxBytes = parseLong(config.get("cacheMaxBytes"), DEFAULT_CACHE_MAX_BYTES);
+        this.cacheTtl = parseLong(config.get("cacheTtl"), DEFAULT_CACHE_TTL);
+        this.cacheStaleWhileRevalidate = parseLong(config.get("cacheStaleWhileRevalidate"), 0);
+        this.cacheStaleIfError = parseLong(config.get("cacheStaleIfError"), 0);
+        this.refreshThreads = parseInt(config.get("refreshThreads"), DEFAULT_REFRESH_THREADS);
+        this.refreshQueueSize = parseInt(config.get("refreshQueueSize"), DEFAULT_REFRESH_QUEUE_SIZE);
+        this.asyncMode = Boolean.parseBoolean(config.get("asyncMode"));
+        this.maxConnections = parseInt(config.get("maxConnections"), DEFAULT_MAX_CONNECTIONS);
+        this.maxConnectionsPerRoute = parseInt(config.get("maxConnectionsPerRoute"), maxConnections);
+        this.connectionRequestTimeout = parseInt(config.get("connectionRequestTimeout"), -1);
+        this.connectTimeout = parseInt(config.get("connectTimeout"), -1);
+        this.connectionTimeToLive = parseLong(config.get("connectionTimeToLive"), -1);
+        this.keepAliveTimeout = parseLong(config.get("keepAliveTimeout"), -1);
+        this.idleConnectionTimeout = parseLong(config.get("idleConnectionTimeout"), -1);
+        this.coalesceRequests = Boolean.parseBoolean(config.get("coalesceRequests"));
+        this.coalescingTimeout = parseLong(config.get("coalescingTimeout"), DEFAULT_COALESCING_TIMEOUT);
+        this.concurrencyLimit = parseInt(config.get("concurrencyLimit"), 0);
+        this.concurrencyMinLimit = parseInt(config.get("concurrencyMinLimit"), 1);
+        this.concurrencyMaxLimit = parseInt(config.get("concurrencyMaxLimit"), maxConnections);
+        this.concurrencyQueueSize = parseInt(config.get("concurrencyQueueSize"), DEFAULT_CONCURRENCY_QUEUE_SIZE);
+        this.concurrencyQueueTimeout = parseLong(config.get("concurrencyQueueTimeout"), DEFAULT_CONCURRENCY_QUEUE_TIMEOUT);
+        this.concurrencyLatencyThreshold = parseLong(config.get("concurrencyLatencyThreshold"),
+                DEFAULT_CONCURRENCY_LATENCY_THRESHOLD);
+        this.circuitBreaker = Boolean.parseBoolean(config.get("circuitBreaker"));
+        this.circuitBreakerWindowSize = parseInt(config.get("circuitBreakerWindowSize"),
+                DEFAULT_CIRCUIT_BREAKER_WINDOW_SIZE);
+        this.circuitBreakerMinimumCalls = parseInt(config.get("circuitBreakerMinimumCalls"),
+                DEFAULT_CIRCUIT_BREAKER_MINIMUM_CALLS);
+        this.circuitBreakerFailureRateThreshold = parseInt(config.get("circuitBreakerFailureRateThreshold"),
+                DEFAULT_CIRCUIT_BREAKER_FAILURE_RATE_THRESHOLD);
+        this.circuitBreakerSlowCallRateThreshold = parseInt(config.get("circuitBreakerSlowCallRateThreshold"), 100);
+        this.circuitBreakerSlowCallDuration = parseLong(config.get("circuitBreakerSlowCallDuration"),
+                DEFAULT_CIRCUIT_BREAKER_SLOW_CALL_DURATION);
+        this.circuitBreakerOpenDuration = parseLong(config.get("circuitBreakerOpenDuration"),
+                DEFAULT_CIRCUIT_BREAKER_OPEN_DURATION);
+        this.circuitBreakerHalfOpenProbes = parseInt(config.get("circuitBreakerHalfOpenProbes"),
+                DEFAULT_CIRCUIT_BREAKER_HALF_OPEN_PROBES);
+        this.loadBalancer = isNotBlank(config.get("loadBalancer")) ? config.get("loadBalancer").trim()
+                : PrerenderEndpointPool.P2C;
+        this.outlierConsecutiveFailures = parseInt(config.get("outlierConsecutiveFailures"),
+                DEFAULT_OUTLIER_CONSECUTIVE_FAILURES);
+        this.outlierEjectionTime = parseLong(config.get("outlierEjectionTime"), DEFAULT_OUTLIER_EJECTION_TIME);
+        this.healthCheckInterval = parseLong(config.get("healthCheckInterval"), 0);
+        this.healthCheckPath = config.get("healthCheckPath") != null ? config.get("healthCheckPath").trim() : "";
+        this.hedgeDelayPercentile = parseInt(config.get("hedgeDelayPercentile"), 0);
+        this.hedgeMinDelay = parseLong(config.get("hedgeMinDelay"), DEFAULT_HEDGE_MIN_DELAY);
+        this.hedgeBudgetPercent = parseInt(config.get("hedgeBudgetPercent"), DEFAULT_HEDGE_BUDGET_PERCENT);
+        this.hedgeMaxThreads = parseInt(config.get("hedgeMaxThreads"), maxConnections);
+        this.metricsRegistry = config.get("metricsRegistry");
+        this.metricsName = isNotBlank(config.get("metricsName")) ? config.get("metricsName").trim() : "prerender";
+        this.diskCacheDirectory = config.get("diskCacheDirectory");
+        this.diskCacheSegmentSize = parseInt(config.get("diskCacheSegmentSize"), DEFAULT_DISK_CACHE_SEGMENT_SIZE);
+        this.diskCacheMaxSegments = parseInt(config.get("diskCacheMaxSegments"), DEFAULT_DISK_CACHE_MAX_SEGMENTS);
+        this.diskCacheMaxEntries = parseInt(config.get("diskCacheMaxEntries"), DEFAULT_DISK_CACHE_MAX_ENTRIES);
+        this.diskCacheCompactionInterval = parseLong(config.get("diskCacheCompactionInterval"),
+                DEFAULT_DISK_CACHE_COMPACTION_INTERVAL);
+        this.cacheWarmUrls = parseList(config.get("cacheWarmUrls"));
+        this.cacheWarmInterval = parseLong(config.get("cacheWarmInterval"), 0);
+        this.cacheWarmRate = parseDouble(config.get("cacheWarmRate"), DEFAULT_CACHE_WARM_RATE);
+        this.cacheWarmConcurrency = parseInt(config.get("cacheWarmConcurrency"), DEFAULT_CACHE_WARM_CONCURRENCY);
+        this.canonicalizeUrls = Boolean.parseBoolean(config.get("canonicalizeUrls"));
+        this.stripTrailingSlash = Boolean.parseBoolean(config.get("stripTrailingSlash"));
+        this.ignoredQueryParams = config.get("ignoredQueryParams") != null
+                ? parseTrimmedList(config.get("ignoredQueryParams")) : DEFAULT_IGNORED_QUERY_PARAMS;
+        this.requestHeaderWhitelist = isNotBlank(config.get("requestHeaderWhitelist"))
+                ? parseTrimmedList(config.get("requestHeaderWhitelist")) : null;
+        this.requestHeaderBlacklist = isNotBlank(config.get("requestHeaderBlacklist"))
+                ? parseTrimmedList(config.get("requestHeaderBlacklist")) : null;
     }
 
+    /**
+     * Create the configured event handler. The service calls this once at init and shares the instance.
+     */
     public PreRenderEventHandler getEventHandler() {
-        final String preRenderEventHandler = config.get("preRenderEventHandler");
-        if (isNotBlank(preRenderEventHandler)) {
+        if (isNotBlank(eventHandlerClassName)) {
             try {
-                return (PreRenderEventHandler) Class.forName(preRenderEventHandler).newInstance();
+                return (PreRenderEventHandler) Class.forName(eventHandlerClassName).newInstance();
             } catch (Exception e) {
                 log.error("PreRenderEventHandler class not find or can not new a instance", e);
             }
@@ -39,9 +261,248 @@ public class PrerenderConfig {
         return null;
     }
 
+    /**
+     * Create the configured html transformers, in order, followed by the "minifyHtml" stage, or null when there are
+     * none. The service calls this once at init and shares the instances.
+     */
+    public HtmlTransformerChain getHtmlTransformers(PrerenderMetrics metrics) {
+        if (htmlTransformerClassNames == null && minifyHtml.isEmpty()) {
+            return null;
+        }
+        final List<HtmlTransformer> transformers = Lists.newArrayList();
+        for (String className : htmlTransformerClassNames != null ? htmlTransformerClassNames
+                : ImmutableList.<String>of()) {
+            try {
+                transformers.add((HtmlTransformer) Class.forName(className).newInstance());
+            } catch (Exception e) {
+                throw new IllegalArgumentException("HtmlTransformer class not find or can not new a instance: "
+                        + className, e);
+            }
+        }
+        if (!minifyHtml.isEmpty()) {
+            // last, so the configured stages see the whole page
+            transformers.add(new MinifyingHtmlTransformer(minifyHtml.contains(MINIFY_SCRIPTS),
+                    minifyHtml.contains(MINIFY_WHITESPACE), minifyHtml.contains(MINIFY_COMMENTS), metrics));
+        }
+        return new HtmlTransformerChain(transformers);
+    }
+
+    /**
+     * Create the configured metrics registry: "jmx" for the built-in MBean, otherwise a class name. Falls back to
+     * {@link PrerenderMetrics#NOOP} when it is not configured or can not be created.
+     */
+    public PrerenderMetrics getMetrics() {
+        if (!isNotBlank(metricsRegistry)) {
+            return PrerenderMetrics.NOOP;
+        }
+        if ("jmx".equals(metricsRegistry.trim())) {
+            return new JmxPrerenderMetrics(metricsName);
+        }
+        try {
+            return (PrerenderMetrics) Class.forName(metricsRegistry.trim()).newInstance();
+        } catch (Exception e) {
+            log.error("PrerenderMetrics class not find or can not new a instance", e);
+            return PrerenderMetrics.NOOP;
+        }
+    }
+
+    /**
+     * In-memory page cache, or null when "cacheMaxEntries" is not configured.
+     */
+    public PrerenderedPageCache getPageCache() {
+        if (cacheMaxEntries <= 0) {
+            return null;
+        }
+        return new PrerenderedPageCache(cacheMaxEntries, cacheMaxBytes, getCacheRetention());
+    }
+
+    /**
+     * Persistent page store opened on "diskCacheDirectory", or null when it is not configured. The caller starts it.
+     */
+    public DiskPageStore getDiskPageStore() {
+        if (!isNotBlank(diskCacheDirectory)) {
+            return null;
+        }
+        try {
+            return new DiskPageStore(new File(diskCacheDirectory.trim()), diskCacheSegmentSize, diskCacheMaxSegments,
+                    diskCacheMaxEntries, getCacheRetention(), diskCacheCompactionInterval);
+        } catch (IOException e) {
+            throw new IllegalStateException("Can not open disk cache in " + diskCacheDirectory, e);
+        }
+    }
+
+    /**
+     * Filters the headers copied between the crawler and the prerender service, with "requestHeaderWhitelist" and
+     * "requestHeaderBlacklist" applied to request headers.
+     */
+    public HeaderForwarder getHeaderForwarder() {
+        return new HeaderForwarder(requestHeaderWhitelist, requestHeaderBlacklist);
+    }
+
+    /**
+     * Rewrites page urls to the form used for prerender calls and cache keys, or null when "canonicalizeUrls" is not
+     * enabled.
+     */
+    public UrlCanonicalizer getUrlCanonicalizer() {
+        if (!canonicalizeUrls) {
+            return null;
+        }
+        return new UrlCanonicalizer(ignoredQueryParams, stripTrailingSlash);
+    }
+
+    /**
+     * Renders the "cacheWarmUrls" sitemaps and url lists into the cache, or null when there are none. The caller
+     * starts it.
+     */
+    public CacheWarmer getCacheWarmer(PrerenderSeoService prerenderSeoService, CloseableHttpClient httpClient) {
+        if (cacheWarmUrls == null) {
+            return null;
+        }
+        if (cacheMaxEntries <= 0 && !isNotBlank(diskCacheDirectory)) {
+            throw new IllegalArgumentException("cacheWarmUrls needs cacheMaxEntries or diskCacheDirectory");
+        }
+        final List<String> sources = Lists.newArrayList();
+        for (String source : cacheWarmUrls) {
+            if (isNotBlank(source)) {
+                sources.add(source.trim());
+            }
+        }
+        return new CacheWarmer(prerenderSeoService, httpClient, sources, cacheWarmRate, cacheWarmConcurrency,
+                cacheWarmInterval);
+    }
+
+    /**
+     * Deduplicates concurrent renders of the same url, or null when "coalesceRequests" is not enabled.
+     */
+    public RequestCoalescer<PrerenderedPage> getRequestCoalescer() {
+        if (!coalesceRequests) {
+            return null;
+        }
+        return new RequestCoalescer<PrerenderedPage>(coalescingTimeout);
+    }
+
+    /**
+     * Adaptive limit on concurrent prerender calls, or null when "concurrencyLimit" is not set.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        if (concurrencyLimit <= 0) {
+            return null;
+        }
+        return new ConcurrencyLimiter(concurrencyLimit, concurrencyMinLimit, concurrencyMaxLimit, concurrencyQueueSize,
+                concurrencyQueueTimeout, concurrencyLatencyThreshold);
+    }
+
+    /**
+     * The prerender service workers, each with its own circuit breaker, behind the configured load balancer. The
+     * caller starts the health checks when "healthCheckInterval" is set.
+     */
+    public PrerenderEndpointPool getEndpointPool() {
+        final List<PrerenderEndpoint> endpoints = Lists.newArrayListWithCapacity(prerenderServiceUrls.size());
+        for (String url : prerenderServiceUrls) {
+            final String hostHeader = toHostHeader(url);
+            endpoints.add(new PrerenderEndpoint(url, hostHeader, getCircuitBreaker(hostHeader),
+                    outlierConsecutiveFailures, outlierEjectionTime, Ticker.systemTicker()));
+        }
+        return new PrerenderEndpointPool(endpoints, loadBalancer);
+    }
+
+    public long getHealthCheckInterval() {
+        return healthCheckInterval;
+    }
+
+    public String getHealthCheckPath() {
+        return healthCheckPath;
+    }
+
+    /**
+     * When and how often to hedge slow prerender calls, or null when "hedgeDelayPercentile" is not set.
+     */
+    public HedgePolicy getHedgePolicy() {
+        if (hedgeDelayPercentile <= 0) {
+            return null;
+        }
+        return new HedgePolicy(hedgeDelayPercentile, hedgeMinDelay, hedgeBudgetPercent);
+    }
+
+    /**
+     * Runs hedged calls, both the first call and its hedge, on at most "hedgeMaxThreads" threads (default
+     * "maxConnections"); a call is rejected rather than queued when they are all busy.
+     */
+    public ThreadPoolExecutor getHedgeExecutor() {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(hedgeMaxThreads, hedgeMaxThreads, 60,
+                TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), new ThreadFactoryBuilder()
+                .setNameFormat("prerender-hedge-%d").setDaemon(true).build(), new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Circuit breaker for one prerender endpoint, or null when "circuitBreaker" is not enabled.
+     */
+    private CircuitBreaker getCircuitBreaker(String name) {
+        if (!circuitBreaker) {
+            return null;
+        }
+        return new CircuitBreaker(name, circuitBreakerWindowSize, circuitBreakerMinimumCalls,
+                circuitBreakerFailureRateThreshold, circuitBreakerSlowCallRateThreshold, circuitBreakerSlowCallDuration,
+                circuitBreakerOpenDuration, circuitBreakerHalfOpenProbes);
+    }
+
+    /**
+     * Re-fetches pages served stale, or null when "cacheStaleWhileRevalidate" is not set.
+     */
+    public BackgroundRefresher getBackgroundRefresher() {
+        if (cacheStaleWhileRevalidate <= 0) {
+            return null;
+        }
+        return new BackgroundRefresher(refreshThreads, refreshQueueSize);
+    }
+
+    public int getCacheMaxEntries() {
+        return cacheMaxEntries;
+    }
+
+    public long getCacheMaxBytes() {
+        return cacheMaxBytes;
+    }
+
+    /**
+     * Soft TTL: how long in milliseconds a cached page is served as fresh.
+     */
+    public long getCacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * How long in milliseconds after the soft TTL a page is still served while it is refreshed in the background.
+     * The hard TTL is {@code cacheTtl + cacheStaleWhileRevalidate}.
+     */
+    public long getCacheStaleWhileRevalidate() {
+        return cacheStaleWhileRevalidate;
+    }
+
+    /**
+     * How long in milliseconds after the soft TTL a page is still served when the prerender service fails.
+     */
+    public long getCacheStaleIfError() {
+        return cacheStaleIfError;
+    }
+
+    /**
+     * How long the caches keep a page: until neither a background refresh nor an upstream error can use it.
+     */
+    public long getCacheRetention() {
+        return cacheTtl + Math.max(cacheStaleWhileRevalidate, cacheStaleIfError);
+    }
+
     public CloseableHttpClient getHttpClient() {
+        return getHttpClient(getConnectionManager());
+    }
+
+    public CloseableHttpClient getHttpClient(HttpClientConnectionManager connectionManager) {
         HttpClientBuilder builder = HttpClients.custom()
-                .setConnectionManager(new PoolingHttpClientConnectionManager())
+                .setConnectionManager(connectionManager)
+                .setKeepAliveStrategy(getKeepAliveStrategy())
                 .disableRedirectHandling();
 
         configureProxy(builder);
@@ -49,92 +510,297 @@ public class PrerenderConfig {
         return builder.build();
     }
 
+    /**
+     * Connection pool sized for the prerender service. Every request goes to the same route, so by default a route
+     * may use the whole pool.
+     */
+    public PoolingHttpClientConnectionManager getConnectionManager() {
+        final PoolingHttpClientConnectionManager connectionManager =
+                new PoolingHttpClientConnectionManager(connectionTimeToLive, TimeUnit.MILLISECONDS);
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        return connectionManager;
+    }
+
+    /**
+     * Background evictor of expired and idle pooled connections, or null when "idleConnectionTimeout" is not set.
+     * The caller starts it.
+     */
+    public IdleConnectionEvictor getIdleConnectionEvictor(HttpClientConnectionManager connectionManager) {
+        if (idleConnectionTimeout <= 0) {
+            return null;
+        }
+        return new IdleConnectionEvictor(connectionManager, idleConnectionTimeout);
+    }
+
+    /**
+     * Non-blocking client used in async mode, or null when "asyncMode" is not enabled. The caller starts it.
+     */
+    public CloseableHttpAsyncClient getAsyncHttpClient() {
+        if (!asyncMode) {
+            return null;
+        }
+        final HttpAsyncClientBuilder builder = HttpAsyncClients.custom()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerRoute)
+                .setKeepAliveStrategy(getKeepAliveStrategy())
+                .setDefaultRequestConfig(getRequestConfig().setRedirectsEnabled(false).build());
+        if (proxy != null) {
+            builder.setProxy(proxy);
+        }
+        return builder.build();
+    }
+
+    public boolean isAsyncMode() {
+        return asyncMode;
+    }
+
     private HttpClientBuilder configureProxy(HttpClientBuilder builder) {
-        final String proxy = config.get("proxy");
-        if (isNotBlank(proxy)) {
-            final int proxyPort = Integer.parseInt(config.get("proxyPort"));
-            DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(new HttpHost(proxy, proxyPort));
+        if (proxy != null) {
+            DefaultProxyRoutePlanner routePlanner = new DefaultProxyRoutePlanner(proxy);
             builder.setRoutePlanner(routePlanner);
         }
         return builder;
     }
 
     private HttpClientBuilder configureTimeout(HttpClientBuilder builder) {
-        final String socketTimeout = getSocketTimeout();
-        if (socketTimeout != null) {
-            RequestConfig config = RequestConfig.custom().setSocketTimeout(Integer.parseInt(socketTimeout)).build();
-            builder.setDefaultRequestConfig(config);
-        }
+        builder.setDefaultRequestConfig(getRequestConfig().build());
         return builder;
     }
 
+    private RequestConfig.Builder getRequestConfig() {
+        final RequestConfig.Builder requestConfig = RequestConfig.custom()
+                .setConnectionRequestTimeout(connectionRequestTimeout)
+                .setConnectTimeout(connectTimeout);
+        if (socketTimeoutMillis != null) {
+            requestConfig.setSocketTimeout(socketTimeoutMillis);
+        }
+        return requestConfig;
+    }
+
+    /**
+     * Honour the Keep-Alive header of the prerender service, and fall back to "keepAliveTimeout" when it sends none.
+     */
+    private ConnectionKeepAliveStrategy getKeepAliveStrategy() {
+        return new DefaultConnectionKeepAliveStrategy() {
+            @Override
+            public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+                final long duration = super.getKeepAliveDuration(response, context);
+                return duration >= 0 ? duration : keepAliveTimeout;
+            }
+        };
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
     public String getSocketTimeout() {
-        return config.get("socketTimeout");
+        return socketTimeout;
     }
 
     public String getPrerenderToken() {
-        return config.get("prerenderToken");
+        return prerenderToken;
+    }
+
+    /**
+     * The "X-Prerender-Token" header to send upstream, or null when no token is configured.
+     */
+    public Header getPrerenderTokenHeader() {
+        return prerenderTokenHeader;
     }
 
     public String getForwardedURLHeader() {
-        return config.get("forwardedURLHeader");
+        return forwardedURLHeader;
     }
 
     public String getProtocol() {
-        return config.get("protocol");
+        return protocol;
     }
 
     public List<String> getCrawlerUserAgents() {
+        return crawlerUserAgents;
+    }
+
+    public UserAgentMatcher getCrawlerUserAgentMatcher() {
+        return crawlerUserAgentMatcher;
+    }
+
+    public List<String> getExtensionsToIgnore() {
+        return extensionsToIgnore;
+    }
+
+    /**
+     * The extensions to ignore, each with its leading dot, for case insensitive lookups.
+     */
+    public CaseInsensitiveStringSet getExtensionsToIgnoreSet() {
+        return extensionsToIgnoreSet;
+    }
+
+    public List<String> getWhitelist() {
+        return whitelist;
+    }
+
+    public List<String> getBlacklist() {
+        return blacklist;
+    }
+
+    /**
+     * Whitelist regexes compiled when the config is created, or null when no whitelist is configured.
+     */
+    public UrlPatternSet getWhitelistPatterns() {
+        return whitelistPatterns;
+    }
+
+    /**
+     * Blacklist regexes compiled when the config is created, or null when no blacklist is configured.
+     */
+    public UrlPatternSet getBlacklistPatterns() {
+        return blacklistPatterns;
+    }
+
+    /**
+     * The first prerender service url.
+     */
+    public String getPrerenderServiceUrl() {
+        return prerenderServiceUrl;
+    }
+
+    /**
+     * Every prerender service url of the comma separated "prerenderServiceUrl".
+     */
+    public List<String> getPrerenderServiceUrls() {
+        return prerenderServiceUrls;
+    }
+
+    private static HttpHost parseProxy(String proxy, String proxyPort) {
+        if (isNotBlank(proxy)) {
+            return new HttpHost(proxy, Integer.parseInt(proxyPort));
+        }
+        return null;
+    }
+
+    private static List<String> parseCrawlerUserAgents(String crawlerUserAgentsFromConfig) {
         List<String> crawlerUserAgents = Lists.newArrayList("baiduspider",
                 "facebookexternalhit", "twitterbot", "rogerbot", "linkedinbot", "embedly", "quora link preview"
                 , "showyoubo", "outbrain", "pinterest", "developers.google.com/+/web/snippet", "slackbot", "vkShare",
                 "W3C_Validator", "redditbot", "Applebot", "whatsapp", "flipboard", "tumblr", "bitlybot",
                 "skypeuripreview", "nuzzel", "discordbot", "google page speed", "qwantify", "pinterestbot",
                 "bitrix link preview", "xing-contenttabreceiver", "chrome-lighthouse", "telegrambot");
-        final String crawlerUserAgentsFromConfig = config.get("crawlerUserAgents");
         if (isNotBlank(crawlerUserAgentsFromConfig)) {
             crawlerUserAgents.addAll(Arrays.asList(crawlerUserAgentsFromConfig.trim().split(",")));
         }
 
-        return crawlerUserAgents;
+        return ImmutableList.copyOf(crawlerUserAgents);
     }
 
-    public List<String> getExtensionsToIgnore() {
+    private static List<String> parseExtensionsToIgnore(String extensionsToIgnoreFromConfig) {
         List<String> extensionsToIgnore = Lists.newArrayList(".js", ".json", ".css", ".xml", ".less", ".png", ".jpg",
                 ".jpeg", ".gif", ".pdf", ".doc", ".txt", ".ico", ".rss", ".zip", ".mp3", ".rar", ".exe", ".wmv",
                 ".doc", ".avi", ".ppt", ".mpg", ".mpeg", ".tif", ".wav", ".mov", ".psd", ".ai", ".xls", ".mp4",
                 ".m4a", ".swf", ".dat", ".dmg", ".iso", ".flv", ".m4v", ".torrent", ".woff", ".ttf");
-        final String extensionsToIgnoreFromConfig = config.get("extensionsToIgnore");
         if (isNotBlank(extensionsToIgnoreFromConfig)) {
             extensionsToIgnore.addAll(Arrays.asList(extensionsToIgnoreFromConfig.trim().split(",")));
         }
 
-        return extensionsToIgnore;
+        return ImmutableList.copyOf(extensionsToIgnore);
     }
 
-    public List<String> getWhitelist() {
-        final String whitelist = config.get("whitelist");
-        if (isNotBlank(whitelist)) {
-            return Arrays.asList(whitelist.trim().split(","));
+    private static CaseInsensitiveStringSet toExtensionSet(List<String> extensions) {
+        final List<String> normalized = Lists.newArrayListWithCapacity(extensions.size());
+        for (String extension : extensions) {
+            final String trimmed = extension.trim();
+            if (!trimmed.isEmpty()) {
+                normalized.add(trimmed.startsWith(".") ? trimmed : "." + trimmed);
+            }
         }
-        return null;
+        return new CaseInsensitiveStringSet(normalized);
     }
 
-    public List<String> getBlacklist() {
-        final String blacklist = config.get("blacklist");
-        if (isNotBlank(blacklist)) {
-            return Arrays.asList(blacklist.trim().split(","));
+    private static List<String> parseList(String value) {
+        if (isNotBlank(value)) {
+            return ImmutableList.copyOf(value.trim().split(","));
         }
         return null;
     }
 
-    public String getPrerenderServiceUrl() {
-        final String prerenderServiceUrl = config.get("prerenderServiceUrl");
-        return isNotBlank(prerenderServiceUrl) ? prerenderServiceUrl : getDefaultPrerenderIoServiceUrl();
+    private static List<String> parseTrimmedList(String value) {
+        final List<String> patterns = Lists.newArrayList();
+        for (String pattern : value.split(",")) {
+            if (isNotBlank(pattern)) {
+                patterns.add(pattern.trim());
+            }
+        }
+        return ImmutableList.copyOf(patterns);
     }
 
-    private String getDefaultPrerenderIoServiceUrl() {
+    /**
+     * "true" for every minify step, otherwise a list of "scripts", "whitespace" and "comments".
+     */
+    private static List<String> parseMinifyHtml(String value) {
+        if (!isNotBlank(value) || "false".equalsIgnoreCase(value.trim())) {
+            return ImmutableList.of();
+        }
+        if ("true".equalsIgnoreCase(value.trim())) {
+            return ImmutableList.of(MINIFY_SCRIPTS, MINIFY_WHITESPACE, MINIFY_COMMENTS);
+        }
+        final List<String> steps = parseTrimmedList(value.toLowerCase(Locale.ENGLISH));
+        for (String step : steps) {
+            if (!MINIFY_SCRIPTS.equals(step) && !MINIFY_WHITESPACE.equals(step) && !MINIFY_COMMENTS.equals(step)) {
+                throw new IllegalArgumentException("Invalid minifyHtml step: " + step);
+            }
+        }
+        return steps;
+    }
+
+    private static UrlPatternSet toPatternSet(List<String> regexes) {
+        return regexes != null ? new UrlPatternSet(regexes) : null;
+    }
+
+    private static List<String> parsePrerenderServiceUrls(String prerenderServiceUrl) {
+        final List<String> urls = Lists.newArrayList();
+        if (isNotBlank(prerenderServiceUrl)) {
+            for (String url : prerenderServiceUrl.split(",")) {
+                if (isNotBlank(url)) {
+                    urls.add(url.trim());
+                }
+            }
+        }
+        if (urls.isEmpty()) {
+            urls.add(getDefaultPrerenderIoServiceUrl());
+        }
+        for (String url : urls) {
+            toHostHeader(url);
+        }
+        return ImmutableList.copyOf(urls);
+    }
+
+    private static String getDefaultPrerenderIoServiceUrl() {
         final String prerenderServiceUrlInEnv = System.getProperty("PRERENDER_SERVICE_URL");
         return isNotBlank(prerenderServiceUrlInEnv) ? prerenderServiceUrlInEnv : PRERENDER_IO_SERVICE_URL;
     }
+
+    private static String toHostHeader(String prerenderServiceUrl) {
+        final HttpHost host = URIUtils.extractHost(URI.create(prerenderServiceUrl));
+        if (host == null) {
+            throw new IllegalArgumentException("Invalid prerenderServiceUrl: " + prerenderServiceUrl);
+        }
+        return host.getPort() != -1 ? host.getHostName() + ":" + host.getPort() : host.getHostName();
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return isNotBlank(value) ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    private static long parseLong(String value, long defaultValue) {
+        return isNotBlank(value) ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        return isNotBlank(value) ? Double.parseDouble(value.trim()) : defaultValue;
+    }
 }
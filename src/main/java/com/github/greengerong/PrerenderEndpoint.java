@@ -0,0 +1,116 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One prerender service worker of an {@link PrerenderEndpointPool}: its url, the calls outstanding on it, and
+ * whether it may be chosen. An endpoint is taken out of rotation for the ejection time after too many consecutive
+ * failures (passive outlier ejection), while an active health check reports it down, or while its circuit breaker
+ * is open.
+ */
+public class PrerenderEndpoint {
+    private final static Logger log = LoggerFactory.getLogger(PrerenderEndpoint.class);
+    private final String url;
+    private final String baseUrl;
+    private final String hostHeader;
+    private final CircuitBreaker circuitBreaker;
+    private final int ejectionThreshold;
+    private final long ejectionNanos;
+    private final Ticker ticker;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private volatile long ejectedUntil;
+    private volatile boolean ejected;
+    private volatile boolean healthy = true;
+
+    public PrerenderEndpoint(String url, String hostHeader, CircuitBreaker circuitBreaker, int ejectionThreshold,
+                             long ejectionMillis, Ticker ticker) {
+        this.url = url;
+        this.baseUrl = url.endsWith("/") ? url : url + "/";
+        this.hostHeader = hostHeader;
+        this.circuitBreaker = circuitBreaker;
+        this.ejectionThreshold = ejectionThreshold;
+        this.ejectionNanos = TimeUnit.MILLISECONDS.toNanos(ejectionMillis);
+        this.ticker = ticker;
+    }
+
+    public boolean isAvailable() {
+        return healthy && !isEjected() && (circuitBreaker == null || !circuitBreaker.isOpen());
+    }
+
+    void onStart() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * End a call started with {@link #onStart()} that was aborted before it had an outcome.
+     */
+    void onAbort() {
+        outstanding.decrementAndGet();
+    }
+
+    /**
+     * Record the end of a call started with {@link #onStart()}.
+     */
+    void onFinish(boolean succeeded) {
+        outstanding.decrementAndGet();
+        if (succeeded) {
+            consecutiveFailures.set(0);
+        } else if (ejectionThreshold > 0 && consecutiveFailures.incrementAndGet() >= ejectionThreshold) {
+            consecutiveFailures.set(0);
+            ejectedUntil = ticker.read() + ejectionNanos;
+            ejected = true;
+            log.warn(String.format("Prerender endpoint %s ejected after %d consecutive failures", url,
+                    ejectionThreshold));
+        }
+    }
+
+    void setHealthy(boolean healthy) {
+        if (this.healthy != healthy) {
+            log.warn(String.format("Prerender endpoint %s is %s", url, healthy ? "healthy again" : "unhealthy"));
+        }
+        this.healthy = healthy;
+    }
+
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    public boolean isEjected() {
+        return ejected && ticker.read() - ejectedUntil < 0;
+    }
+
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * The url with a trailing slash, ready to have the page url appended.
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * The Host header value ("host[:port]") of this endpoint.
+     */
+    public String getHostHeader() {
+        return hostHeader;
+    }
+
+    /**
+     * The circuit breaker of this endpoint, or null when circuit breaking is not enabled.
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+}
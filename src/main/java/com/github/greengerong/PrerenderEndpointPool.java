@@ -0,0 +1,220 @@
+package com.github.greengerong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.http.HttpStatus.SC_INTERNAL_SERVER_ERROR;
+
+/**
+ * Client-side load balancing over the prerender service workers.
+ * <p/>
+ * "p2c" (power of two choices, the default) picks two random available endpoints and takes the one with fewer
+ * outstanding calls; "leastOutstanding" scans every endpoint; "consistentHash" maps each page url to the same
+ * worker, through a ring of virtual nodes, so its local browser cache stays warm. When no endpoint is available they
+ * are all considered, so the call fails fast on its circuit breaker instead of finding no endpoint.
+ */
+public class PrerenderEndpointPool {
+    private final static Logger log = LoggerFactory.getLogger(PrerenderEndpointPool.class);
+    public static final String P2C = "p2c";
+    public static final String LEAST_OUTSTANDING = "leastOutstanding";
+    public static final String CONSISTENT_HASH = "consistentHash";
+    private static final int VIRTUAL_NODES = 100;
+    private static final HashFunction RING_HASH = Hashing.murmur3_128();
+    private final List<PrerenderEndpoint> endpoints;
+    private final String strategy;
+    private final long[] ringHashes;
+    private final PrerenderEndpoint[] ringEndpoints;
+    private final Random random = new Random();
+    private ScheduledExecutorService healthChecker;
+
+    public PrerenderEndpointPool(List<PrerenderEndpoint> endpoints, String strategy) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("No prerender endpoint");
+        }
+        if (!Arrays.asList(P2C, LEAST_OUTSTANDING, CONSISTENT_HASH).contains(strategy)) {
+            throw new IllegalArgumentException("Unknown load balancer: " + strategy);
+        }
+        this.endpoints = ImmutableList.copyOf(endpoints);
+        this.strategy = strategy;
+        this.ringHashes = new long[CONSISTENT_HASH.equals(strategy) ? endpoints.size() * VIRTUAL_NODES : 0];
+        this.ringEndpoints = new PrerenderEndpoint[ringHashes.length];
+        if (ringHashes.length > 0) {
+            buildRing();
+        }
+    }
+
+    public PrerenderEndpoint choose(String url) {
+        if (endpoints.size() == 1) {
+            return endpoints.get(0);
+        }
+        if (CONSISTENT_HASH.equals(strategy)) {
+            final PrerenderEndpoint endpoint = chooseByHash(url, null);
+            return endpoint != null ? endpoint : ringEndpoints[ringIndex(url)];
+        }
+        List<PrerenderEndpoint> candidates = getAvailableEndpoints();
+        if (candidates.isEmpty()) {
+            candidates = endpoints;
+        }
+        if (LEAST_OUTSTANDING.equals(strategy)) {
+            return leastOutstanding(candidates);
+        }
+        return powerOfTwoChoices(candidates);
+    }
+
+    /**
+     * An available endpoint other than {@code excluded}, for a hedged call, or null when there is none.
+     */
+    public PrerenderEndpoint chooseOther(String url, PrerenderEndpoint excluded) {
+        if (CONSISTENT_HASH.equals(strategy)) {
+            return chooseByHash(url, excluded);
+        }
+        final List<PrerenderEndpoint> candidates = getAvailableEndpoints();
+        candidates.remove(excluded);
+        if (candidates.isEmpty()) {
+            return null;
+        }
+        if (LEAST_OUTSTANDING.equals(strategy)) {
+            return leastOutstanding(candidates);
+        }
+        return powerOfTwoChoices(candidates);
+    }
+
+    public List<PrerenderEndpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Check every endpoint with a GET of {@code healthCheckPath} every {@code intervalMillis}; an endpoint that
+     * errors or answers with a 5xx is taken out of rotation until a check succeeds again.
+     */
+    public void startHealthChecks(final CloseableHttpClient httpClient, final String healthCheckPath,
+                                  long intervalMillis) {
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("prerender-health-check-%d").setDaemon(true).build());
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (PrerenderEndpoint endpoint : endpoints) {
+                    endpoint.setHealthy(check(httpClient, endpoint, healthCheckPath));
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+        }
+    }
+
+    private boolean check(CloseableHttpClient httpClient, PrerenderEndpoint endpoint, String healthCheckPath) {
+        CloseableHttpResponse response = null;
+        try {
+            response = httpClient.execute(new HttpGet(endpoint.getBaseUrl() + healthCheckPath));
+            return response.getStatusLine().getStatusCode() < SC_INTERNAL_SERVER_ERROR;
+        } catch (Exception e) {
+            log.trace(String.format("Health check of %s failed", endpoint.getUrl()), e);
+            return false;
+        } finally {
+            if (response != null) {
+                try {
+                    response.close();
+                } catch (IOException e) {
+                    log.trace("Close health check response error", e);
+                }
+            }
+        }
+    }
+
+    private List<PrerenderEndpoint> getAvailableEndpoints() {
+        final List<PrerenderEndpoint> available = Lists.newArrayListWithCapacity(endpoints.size());
+        for (PrerenderEndpoint endpoint : endpoints) {
+            if (endpoint.isAvailable()) {
+                available.add(endpoint);
+            }
+        }
+        return available;
+    }
+
+    private PrerenderEndpoint powerOfTwoChoices(List<PrerenderEndpoint> candidates) {
+        if (candidates.size() == 1) {
+            return candidates.get(0);
+        }
+        final int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first) {
+            second++;
+        }
+        final PrerenderEndpoint a = candidates.get(first);
+        final PrerenderEndpoint b = candidates.get(second);
+        return b.getOutstanding() < a.getOutstanding() ? b : a;
+    }
+
+    private PrerenderEndpoint leastOutstanding(List<PrerenderEndpoint> candidates) {
+        PrerenderEndpoint best = null;
+        for (PrerenderEndpoint endpoint : candidates) {
+            if (best == null || endpoint.getOutstanding() < best.getOutstanding()) {
+                best = endpoint;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Walk the ring clockwise from the url's hash to the first available endpoint, so a url only moves when its
+     * own worker is out of rotation. Returns null when no endpoint but {@code excluded} is available.
+     */
+    private PrerenderEndpoint chooseByHash(String url, PrerenderEndpoint excluded) {
+        final int index = ringIndex(url);
+        for (int i = 0; i < ringHashes.length; i++) {
+            final PrerenderEndpoint endpoint = ringEndpoints[(index + i) % ringHashes.length];
+            if (endpoint != excluded && endpoint.isAvailable()) {
+                return endpoint;
+            }
+        }
+        return null;
+    }
+
+    private int ringIndex(String url) {
+        final int index = Arrays.binarySearch(ringHashes, hash(url));
+        return (index < 0 ? -index - 1 : index) % ringHashes.length;
+    }
+
+    private void buildRing() {
+        final long[] hashes = new long[ringHashes.length];
+        int node = 0;
+        for (PrerenderEndpoint endpoint : endpoints) {
+            for (int i = 0; i < VIRTUAL_NODES; i++) {
+                hashes[node++] = hash(endpoint.getUrl() + "#" + i);
+            }
+        }
+        final long[] sorted = hashes.clone();
+        Arrays.sort(sorted);
+        for (int i = 0; i < hashes.length; i++) {
+            final int position = Arrays.binarySearch(sorted, hashes[i]);
+            ringHashes[position] = hashes[i];
+            ringEndpoints[position] = endpoints.get(i / VIRTUAL_NODES);
+        }
+    }
+
+    private static long hash(String value) {
+        return RING_HASH.hashString(value, Charsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,56 @@
+package com.github.greengerong;
+
+import com.google.common.base.Supplier;
+
+/**
+ * Where the filter reports what it does: counters, timers and gauges, each named by a metric name and an optional
+ * tag (the decision reason, the upstream status, ...).
+ * <p/>
+ * Configure "metricsRegistry" with "jmx" for the built-in {@link JmxPrerenderMetrics}, or with the class name of an
+ * implementation that forwards to another registry; it needs a public no-arg constructor. A single instance is
+ * shared by every request, so implementations must be thread safe and cheap: they are called on the request path.
+ * {@link #close()} is called once when the filter is destroyed.
+ */
+public interface PrerenderMetrics {
+    /**
+     * Does nothing, used when "metricsRegistry" is not configured.
+     */
+    PrerenderMetrics NOOP = new PrerenderMetrics() {
+        @Override
+        public void count(String name, String tag, long amount) {
+        }
+
+        @Override
+        public void time(String name, String tag, long nanos) {
+        }
+
+        @Override
+        public void gauge(String name, Supplier<? extends Number> value) {
+        }
+
+        @Override
+        public void close() {
+        }
+    };
+
+    /**
+     * Add {@code amount} to a counter.
+     *
+     * @param tag null for an untagged counter.
+     */
+    void count(String name, String tag, long amount);
+
+    /**
+     * Record a duration in a timer.
+     *
+     * @param tag null for an untagged timer.
+     */
+    void time(String name, String tag, long nanos);
+
+    /**
+     * Register a value that is read when the metrics are collected. Called once per gauge, at init.
+     */
+    void gauge(String name, Supplier<? extends Number> value);
+
+    void close();
+}
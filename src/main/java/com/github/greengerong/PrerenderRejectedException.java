@@ -0,0 +1,15 @@
+package com.github.greengerong;
+
+import java.io.IOException;
+
+/**
+ * Thrown instead of calling the prerender service when a guard turns the call away, so the request is served from
+ * a stale page or by the normal filter chain without waiting.
+ */
+public class PrerenderRejectedException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public PrerenderRejectedException(String message) {
+        super(message);
+    }
+}
@@ -1,71 +1,391 @@
 package com.github.greengerong;
 
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
+import com.google.common.base.Charsets;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import com.google.common.io.CountingOutputStream;
 import org.apache.commons.lang.StringUtils;
 import org.apache.http.*;
+import org.apache.http.client.entity.GzipDecompressingEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ContentType;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.utils.URIUtils;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.message.HeaderGroup;
+import org.apache.http.pool.PoolStats;
 import org.apache.http.util.EntityUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.net.URI;
-import java.net.URISyntaxException;
-import java.util.Arrays;
-import java.util.Enumeration;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.Date;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.GZIPOutputStream;
 
-import static com.google.common.collect.FluentIterable.from;
 import static org.apache.commons.lang.StringUtils.isNotBlank;
+import static org.apache.http.HttpHeaders.ACCEPT_ENCODING;
+import static org.apache.http.HttpHeaders.CACHE_CONTROL;
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
 import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+import static org.apache.http.HttpHeaders.ETAG;
+import static org.apache.http.HttpHeaders.EXPIRES;
 import static org.apache.http.HttpHeaders.HOST;
+import static org.apache.http.HttpHeaders.IF_MATCH;
+import static org.apache.http.HttpHeaders.IF_MODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.IF_NONE_MATCH;
+import static org.apache.http.HttpHeaders.IF_RANGE;
+import static org.apache.http.HttpHeaders.IF_UNMODIFIED_SINCE;
+import static org.apache.http.HttpHeaders.LAST_MODIFIED;
+import static org.apache.http.HttpHeaders.VARY;
 
 public class PrerenderSeoService {
     private final static Logger log = LoggerFactory.getLogger(PrerenderSeoService.class);
     /**
-     * These are the "hop-by-hop" headers that should not be copied.
-     * http://www.w3.org/Protocols/rfc2616/rfc2616-sec13.html
-     * I use an HttpClient HeaderGroup class instead of Set<String> because this
-     * approach does case insensitive lookup faster.
+     * Request headers that make the prerender service answer 304 instead of a page.
      */
-    private static final HeaderGroup hopByHopHeaders;
+    private static final String[] CONDITIONAL_HEADERS = {IF_NONE_MATCH, IF_MODIFIED_SINCE, IF_MATCH,
+            IF_UNMODIFIED_SINCE, IF_RANGE};
+    /**
+     * Cached page headers repeated on a 304 sent to a bot.
+     */
+    private static final HeaderGroup NOT_MODIFIED_HEADERS = new HeaderGroup();
+    private static final CaseInsensitiveStringSet UNCACHEABLE_DIRECTIVES = new CaseInsensitiveStringSet(
+            ImmutableList.of("private", "no-store", "no-cache"));
+    private static final CaseInsensitiveStringSet UNCACHEABLE_VARY = new CaseInsensitiveStringSet(
+            ImmutableList.of("*", "Cookie", "Authorization"));
     public static final String ESCAPED_FRAGMENT_KEY = "_escaped_fragment_";
+    /**
+     * Set on a request that is dispatched again after its async prerender failed, so it goes down the normal chain.
+     */
+    public static final String ASYNC_FALLBACK_ATTRIBUTE = PrerenderSeoService.class.getName() + ".asyncFallback";
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+    /**
+     * Per-thread copy buffer, so streaming a page does not allocate a new buffer on every request.
+     */
+    private static final ThreadLocal<byte[]> streamBuffer = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[STREAM_BUFFER_SIZE];
+        }
+    };
+    private PoolingHttpClientConnectionManager connectionManager;
+    private IdleConnectionEvictor idleConnectionEvictor;
     private CloseableHttpClient httpClient;
+    private CloseableHttpAsyncClient asyncHttpClient;
     private PrerenderConfig prerenderConfig;
-    private PreRenderEventHandler preRenderEventHandler;
+    private final PreRenderEventHandler preRenderEventHandler;
+    private final PrerenderMetrics metrics;
+    private PrerenderedPageCache pageCache;
+    private DiskPageStore diskPageStore;
+    private RequestCoalescer<PrerenderedPage> requestCoalescer;
+    private BackgroundRefresher backgroundRefresher;
+    private ConcurrencyLimiter concurrencyLimiter;
+    private PrerenderEndpointPool endpointPool;
+    private HedgePolicy hedgePolicy;
+    private ExecutorService hedgeExecutor;
+    private CacheWarmer cacheWarmer;
+    private UrlCanonicalizer urlCanonicalizer;
+    private final HeaderForwarder headerForwarder;
+    private final HtmlTransformerChain htmlTransformers;
 
     public PrerenderSeoService(Map<String, String> config) {
         this.prerenderConfig = new PrerenderConfig(config);
+        this.connectionManager = prerenderConfig.getConnectionManager();
         this.httpClient = getHttpClient();
+        this.idleConnectionEvictor = prerenderConfig.getIdleConnectionEvictor(connectionManager);
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.start();
+        }
+        this.preRenderEventHandler = prerenderConfig.getEventHandler();
+        this.urlCanonicalizer = prerenderConfig.getUrlCanonicalizer();
+        this.headerForwarder = prerenderConfig.getHeaderForwarder();
+        this.metrics = prerenderConfig.getMetrics();
+        this.htmlTransformers = prerenderConfig.getHtmlTransformers(metrics);
+        this.pageCache = prerenderConfig.getPageCache();
+        this.diskPageStore = prerenderConfig.getDiskPageStore();
+        if (diskPageStore != null) {
+            diskPageStore.start();
+        }
+        this.requestCoalescer = prerenderConfig.getRequestCoalescer();
+        this.backgroundRefresher = prerenderConfig.getBackgroundRefresher();
+        this.concurrencyLimiter = prerenderConfig.getConcurrencyLimiter();
+        this.endpointPool = prerenderConfig.getEndpointPool();
+        if (prerenderConfig.getHealthCheckInterval() > 0) {
+            endpointPool.startHealthChecks(httpClient, prerenderConfig.getHealthCheckPath(),
+                    prerenderConfig.getHealthCheckInterval());
+        }
+        this.hedgePolicy = prerenderConfig.getHedgePolicy();
+        if (hedgePolicy != null) {
+            hedgeExecutor = prerenderConfig.getHedgeExecutor();
+        }
+        this.asyncHttpClient = getAsyncHttpClient();
+        if (asyncHttpClient != null) {
+            asyncHttpClient.start();
+        }
+        registerGauges();
+        this.cacheWarmer = prerenderConfig.getCacheWarmer(this, httpClient);
+        if (cacheWarmer != null) {
+            cacheWarmer.start();
+        }
+    }
+
+    private void registerGauges() {
+        metrics.gauge("pool.leased", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return getConnectionPoolStats().getLeased();
+            }
+        });
+        metrics.gauge("pool.pending", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return getConnectionPoolStats().getPending();
+            }
+        });
+        metrics.gauge("pool.available", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return getConnectionPoolStats().getAvailable();
+            }
+        });
+        metrics.gauge("pool.max", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return getConnectionPoolStats().getMax();
+            }
+        });
+        if (concurrencyLimiter != null) {
+            metrics.gauge("concurrency.limit", new Supplier<Integer>() {
+                @Override
+                public Integer get() {
+                    return concurrencyLimiter.getLimit();
+                }
+            });
+            metrics.gauge("concurrency.inFlight", new Supplier<Integer>() {
+                @Override
+                public Integer get() {
+                    return concurrencyLimiter.getInFlight();
+                }
+            });
+        }
+        if (hedgePolicy != null) {
+            metrics.gauge("hedge.count", new Supplier<Long>() {
+                @Override
+                public Long get() {
+                    return hedgePolicy.getHedgedCount();
+                }
+            });
+        }
+        final List<PrerenderEndpoint> endpoints = endpointPool.getEndpoints();
+        for (int i = 0; i < endpoints.size(); i++) {
+            registerEndpointGauges("endpoint." + i, endpoints.get(i));
+        }
+    }
+
+    /**
+     * Gauges of a prerender endpoint: health and ejection as 1 or 0, outstanding calls, and, with a circuit breaker,
+     * its state (0 closed, 1 open, 2 half open) and the calls it turned away.
+     */
+    private void registerEndpointGauges(String prefix, final PrerenderEndpoint endpoint) {
+        metrics.gauge(prefix + ".healthy", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return endpoint.isHealthy() ? 1 : 0;
+            }
+        });
+        metrics.gauge(prefix + ".ejected", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return endpoint.isEjected() ? 1 : 0;
+            }
+        });
+        metrics.gauge(prefix + ".outstanding", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return endpoint.getOutstanding();
+            }
+        });
+        final CircuitBreaker circuitBreaker = endpoint.getCircuitBreaker();
+        if (circuitBreaker != null) {
+            metrics.gauge(prefix + ".circuitState", new Supplier<Integer>() {
+                @Override
+                public Integer get() {
+                    return circuitBreaker.getState().ordinal();
+                }
+            });
+            metrics.gauge(prefix + ".circuitNotPermitted", new Supplier<Long>() {
+                @Override
+                public Long get() {
+                    return circuitBreaker.getNotPermittedCount();
+                }
+            });
+        }
     }
 
     static {
-        hopByHopHeaders = new HeaderGroup();
-        String[] headers = new String[]{
-                "Connection", "Keep-Alive", "Proxy-Authenticate", "Proxy-Authorization",
-                "TE", "Trailers", "Transfer-Encoding", "Upgrade"};
-        for (String header : headers) {
-            hopByHopHeaders.addHeader(new BasicHeader(header, null));
+        for (String header : new String[]{ETAG, LAST_MODIFIED, CACHE_CONTROL, EXPIRES, VARY}) {
+            NOT_MODIFIED_HEADERS.addHeader(new BasicHeader(header, null));
         }
     }
 
     public void destroy() {
+        if (cacheWarmer != null) {
+            cacheWarmer.shutdown();
+        }
         if (preRenderEventHandler != null) {
             preRenderEventHandler.destroy();
         }
+        if (idleConnectionEvictor != null) {
+            idleConnectionEvictor.shutdown();
+        }
+        if (backgroundRefresher != null) {
+            backgroundRefresher.shutdown();
+        }
+        endpointPool.shutdown();
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
         closeQuietly(httpClient);
+        closeQuietly(asyncHttpClient);
+        connectionManager.shutdown();
+        if (diskPageStore != null) {
+            diskPageStore.close();
+        }
+        metrics.close();
+    }
+
+    /**
+     * Leased, pending and available connection counts of the blocking client's pool, for sizing it against the
+     * measured render concurrency.
+     */
+    public PoolStats getConnectionPoolStats() {
+        return connectionManager.getTotalStats();
+    }
+
+    /**
+     * The cache warmer started for "cacheWarmUrls", for its rendered, skipped and failed counts, or null when there is
+     * none.
+     */
+    public CacheWarmer getCacheWarmer() {
+        return cacheWarmer;
+    }
+
+    /**
+     * The adaptive limit on prerender calls, for its current limit and queue gauges, or null when it is not enabled.
+     */
+    public ConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
+    }
+
+    /**
+     * The prerender service endpoints, for their outstanding calls, health and circuit breakers.
+     */
+    public PrerenderEndpointPool getEndpointPool() {
+        return endpointPool;
+    }
+
+    public PrerenderMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * When slow prerender calls are hedged, for the current hedge delay and the number of hedges sent, or null when
+     * hedging is not enabled.
+     */
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * Render {@code url} now, through the same endpoints and guards as a crawler request, and store it in the page
+     * caches, replacing any cached render. For warming the cache and for pages known to have changed.
+     *
+     * @return true when the render was cached, false when the prerender service answered with a server error.
+     */
+    public boolean recache(String pageUrl) throws IOException {
+        if (!isCaching()) {
+            throw new IllegalStateException("Prerender page cache is not enabled");
+        }
+        final String url = canonicalize(pageUrl);
+        final PrerenderEndpoint endpoint = endpointPool.choose(url);
+        final HttpGet getMethod = getHttpGet(getApiUrl(endpoint, url));
+        withPrerenderToken(getMethod);
+        getMethod.setHeader(ACCEPT_ENCODING, PrerenderedPage.GZIP);
+        final PrerenderedPage page = requestCoalescer != null ? loadCoalesced(url, endpoint, getMethod, null)
+                : fetchPage(url, endpoint, getMethod, null);
+        return page != null && isCacheable(page);
+    }
+
+    /**
+     * Whether a render of {@code url} is cached and still within its TTL.
+     */
+    public boolean isCached(String url) {
+        final PrerenderedPage page = getCachedPage(canonicalize(url));
+        return page != null && isFresh(page);
+    }
+
+    /**
+     * Drop the cached render of {@code url} from both caches before returning, so the next crawler request renders
+     * it again.
+     */
+    public void invalidate(String pageUrl) {
+        final String url = canonicalize(pageUrl);
+        if (pageCache != null) {
+            pageCache.invalidate(url);
+        }
+        if (diskPageStore != null) {
+            diskPageStore.remove(url);
+        }
+    }
+
+    /**
+     * Drop the cached renders of every url that starts with {@code prefix}, e.g. "http://www.example.com/products/".
+     * The prefix is matched against the cache keys as they are, so it should be canonical when urls are.
+     *
+     * @return the number of pages dropped from whichever cache held more of them.
+     */
+    public int invalidatePrefix(String prefix) {
+        final int fromMemory = pageCache != null ? pageCache.invalidatePrefix(prefix) : 0;
+        final int fromDisk = diskPageStore != null ? diskPageStore.removePrefix(prefix) : 0;
+        return Math.max(fromMemory, fromDisk);
     }
 
     public boolean prerenderIfEligible(HttpServletRequest servletRequest, HttpServletResponse servletResponse) {
@@ -73,6 +393,8 @@ public class PrerenderSeoService {
             if (handlePrerender(servletRequest, servletResponse)) {
                 return true;
             }
+        } catch (PrerenderRejectedException e) {
+            log.trace(e.getMessage());
         } catch (Exception e) {
             log.error("Prerender service error", e);
         }
@@ -80,9 +402,12 @@ public class PrerenderSeoService {
     }
 
     private boolean handlePrerender(HttpServletRequest servletRequest, HttpServletResponse servletResponse)
-            throws URISyntaxException, IOException {
+            throws IOException {
+        if (servletRequest.getAttribute(ASYNC_FALLBACK_ATTRIBUTE) != null) {
+            log.trace("Request is dispatched back after an async prerender failure; intercept: no");
+            return false;
+        }
         if (shouldShowPrerenderedPage(servletRequest)) {
-            this.preRenderEventHandler = prerenderConfig.getEventHandler();
             if (beforeRender(servletRequest, servletResponse) || proxyPrerenderedPageResponse(servletRequest, servletResponse)) {
                 return true;
             }
@@ -90,7 +415,7 @@ public class PrerenderSeoService {
         return false;
     }
 
-    private boolean shouldShowPrerenderedPage(HttpServletRequest request) throws URISyntaxException {
+    private boolean shouldShowPrerenderedPage(HttpServletRequest request) {
         final String userAgent = request.getHeader("User-Agent");
         final String url = getRequestURL(request);
         final String referer = request.getHeader("Referer");
@@ -99,48 +424,56 @@ public class PrerenderSeoService {
 
         if (!HttpGet.METHOD_NAME.equals(request.getMethod())) {
             log.trace("Request is not HTTP GET; intercept: no");
-            return false;
+            return decide("nonGet", false);
         }
 
         if (isInResources(url)) {
             log.trace("request is for a (static) resource; intercept: no");
-            return false;
+            return decide("resource", false);
         }
         
         String prerenderHeader = request.getHeader("X-Prerender");
         if (StringUtils.isNotEmpty(prerenderHeader)) {
-            return false;
+            return decide("prerenderRequest", false);
         }
 
-        final List<String> whiteList = prerenderConfig.getWhitelist();
+        final UrlPatternSet whiteList = prerenderConfig.getWhitelistPatterns();
         if (whiteList != null && !isInWhiteList(url, whiteList)) {
             log.trace("Whitelist is enabled, but this request is not listed; intercept: no");
-            return false;
+            return decide("notWhitelisted", false);
         }
 
-        final List<String> blacklist = prerenderConfig.getBlacklist();
+        final UrlPatternSet blacklist = prerenderConfig.getBlacklistPatterns();
         if (blacklist != null && isInBlackList(url, referer, blacklist)) {
             log.trace("Blacklist is enabled, and this request is listed; intercept: no");
-            return false;
+            return decide("blacklisted", false);
         }
 
         if (hasEscapedFragment(request)) {
             log.trace("Request Has _escaped_fragment_; intercept: yes");
-            return true;
+            return decide("escapedFragment", true);
         }
 
         if (StringUtils.isBlank(userAgent)) {
             log.trace("Request has blank userAgent; intercept: no");
-            return false;
+            return decide("noUserAgent", false);
         }
 
         if (!isInSearchUserAgent(userAgent)) {
             log.trace("Request User-Agent is not a search bot; intercept: no");
-            return false;
+            return decide("notCrawler", false);
         }
 
         log.trace(String.format("Defaulting to request intercept(user-agent=%s): yes", userAgent));
-        return true;
+        return decide("crawler", true);
+    }
+
+    /**
+     * Count the interception decision by its reason.
+     */
+    private boolean decide(String reason, boolean intercept) {
+        metrics.count("decisions", reason, 1);
+        return intercept;
     }
 
     protected HttpGet getHttpGet(String apiUrl) {
@@ -148,39 +481,19 @@ public class PrerenderSeoService {
     }
 
     protected CloseableHttpClient getHttpClient() {
-        return prerenderConfig.getHttpClient();
+        return prerenderConfig.getHttpClient(connectionManager);
+    }
+
+    protected CloseableHttpAsyncClient getAsyncHttpClient() {
+        return prerenderConfig.getAsyncHttpClient();
     }
 
     /**
      * Copy request headers from the servlet client to the proxy request.
-     *
-     * @throws java.net.URISyntaxException
-     */
-    private void copyRequestHeaders(HttpServletRequest servletRequest, HttpRequest proxyRequest)
-            throws URISyntaxException {
-        // Get an Enumeration of all of the header names sent by the client
-        Enumeration<?> enumerationOfHeaderNames = servletRequest.getHeaderNames();
-        while (enumerationOfHeaderNames.hasMoreElements()) {
-            String headerName = (String) enumerationOfHeaderNames.nextElement();
-            //Instead the content-length is effectively set via InputStreamEntity
-            if (!headerName.equalsIgnoreCase(CONTENT_LENGTH) && !hopByHopHeaders.containsHeader(headerName)) {
-                Enumeration<?> headers = servletRequest.getHeaders(headerName);
-                while (headers.hasMoreElements()) {//sometimes more than one value
-                    String headerValue = (String) headers.nextElement();
-                    // In case the proxy host is running multiple virtual servers,
-                    // rewrite the Host header to ensure that we get content from
-                    // the correct virtual server
-                    if (headerName.equalsIgnoreCase(HOST)) {
-                        HttpHost host = URIUtils.extractHost(new URI(prerenderConfig.getPrerenderServiceUrl()));
-                        headerValue = host.getHostName();
-                        if (host.getPort() != -1) {
-                            headerValue += ":" + host.getPort();
-                        }
-                    }
-                    proxyRequest.addHeader(headerName, headerValue);
-                }
-            }
-        }
+     */
+    void copyRequestHeaders(HttpServletRequest servletRequest, HttpRequest proxyRequest,
+                            PrerenderEndpoint endpoint) {
+        headerForwarder.copyRequestHeaders(servletRequest, proxyRequest, endpoint.getHostHeader());
     }
 
     private String getRequestURL(HttpServletRequest request) {
@@ -197,33 +510,19 @@ public class PrerenderSeoService {
         return request.getRequestURL().toString();
     }
 
-    private String getApiUrl(String url) {
-        String prerenderServiceUrl = prerenderConfig.getPrerenderServiceUrl();
-        if (!prerenderServiceUrl.endsWith("/")) {
-            prerenderServiceUrl += "/";
-        }
-        return prerenderServiceUrl + url;
+    private String getApiUrl(PrerenderEndpoint endpoint, String url) {
+        // a canonical hashbang url keeps its fragment, which must be escaped to reach the prerender service
+        return endpoint.getBaseUrl() + (url.indexOf('#') >= 0 ? url.replace("#", "%23") : url);
     }
 
     /**
      * Copy proxied response headers back to the servlet client.
      */
-    private void copyResponseHeaders(HttpResponse proxyResponse, final HttpServletResponse servletResponse) {
+    void copyResponseHeaders(HttpResponse proxyResponse, final HttpServletResponse servletResponse) {
         servletResponse.setCharacterEncoding(getContentCharSet(proxyResponse.getEntity()));
-        from(Arrays.asList(proxyResponse.getAllHeaders())).filter(new Predicate<Header>() {
-            @Override
-            public boolean apply(Header header) {
-                return !hopByHopHeaders.containsHeader(header.getName());
-            }
-        }).transform(new Function<Header, Boolean>() {
-            @Override
-            public Boolean apply(Header header) {
-                servletResponse.addHeader(header.getName(), header.getValue());
-                return true;
-            }
-        }).toList();
+        headerForwarder.copyResponseHeaders(proxyResponse, servletResponse);
     }
-    
+
     /**
      * Get the charset used to encode the http entity.
      */
@@ -246,7 +545,7 @@ public class PrerenderSeoService {
 
     private String getResponseHtml(HttpResponse proxyResponse)
             throws IOException {
-        HttpEntity entity = proxyResponse.getEntity();
+        HttpEntity entity = getDecompressedEntity(proxyResponse);
         return entity != null ? EntityUtils.toString(entity) : "";
     }
 
@@ -259,11 +558,49 @@ public class PrerenderSeoService {
         try {
             printWriter.write(html);
             printWriter.flush();
+            if (metrics != PrerenderMetrics.NOOP) {
+                metrics.count("bytesProxied", null, getEncodedLength(html, servletResponse.getCharacterEncoding()));
+            }
         } finally {
             closeQuietly(printWriter);
         }
     }
 
+    /**
+     * The number of bytes the html takes in the response charset, ISO-8859-1 when none is set.
+     */
+    private static long getEncodedLength(String html, String encoding) {
+        try {
+            return html.getBytes(encoding != null ? encoding : Charsets.ISO_8859_1.name()).length;
+        } catch (UnsupportedEncodingException e) {
+            return html.length();
+        }
+    }
+
+    /**
+     * Copy the response body bytes from the proxy to the servlet client without decoding them, used when no
+     * afterRender handler needs the page as a String.
+     */
+    private void streamEntity(HttpEntity entity, HttpServletResponse servletResponse) throws IOException {
+        if (entity == null) {
+            return;
+        }
+        final InputStream input = entity.getContent();
+        try {
+            final OutputStream output = servletResponse.getOutputStream();
+            final byte[] buffer = streamBuffer.get();
+            long bytes = 0;
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                output.write(buffer, 0, read);
+                bytes += read;
+            }
+            output.flush();
+            metrics.count("bytesProxied", null, bytes);
+        } finally {
+            closeQuietly(input);
+        }
+    }
 
     protected void closeQuietly(Closeable closeable) {
         try {
@@ -279,49 +616,50 @@ public class PrerenderSeoService {
         return request.getParameterMap().containsKey(ESCAPED_FRAGMENT_KEY);
     }
 
-    private boolean isInBlackList(final String url, final String referer, List<String> blacklist) {
-        return from(blacklist).anyMatch(new Predicate<String>() {
-            @Override
-            public boolean apply(String regex) {
-                final Pattern pattern = Pattern.compile(regex);
-                return pattern.matcher(url).matches() ||
-                        (!StringUtils.isBlank(referer) && pattern.matcher(referer).matches());
-            }
-        });
+    private boolean isInBlackList(final String url, final String referer, UrlPatternSet blacklist) {
+        return blacklist.matches(url) || (!StringUtils.isBlank(referer) && blacklist.matches(referer));
     }
 
     private boolean isInSearchUserAgent(final String userAgent) {
-        return from(prerenderConfig.getCrawlerUserAgents()).anyMatch(new Predicate<String>() {
-            @Override
-            public boolean apply(String item) {
-                return userAgent.toLowerCase().contains(item.toLowerCase());
-            }
-        });
+        return prerenderConfig.getCrawlerUserAgentMatcher().matches(userAgent);
     }
 
 
+    /**
+     * Look up every dot suffix of the last path segment ("a.tar.gz" tries ".tar.gz" then ".gz"), ignoring the
+     * query string and fragment, in the precomputed extension set.
+     */
     private boolean isInResources(final String url) {
-        return from(prerenderConfig.getExtensionsToIgnore()).anyMatch(new Predicate<String>() {
-            @Override
-            public boolean apply(String item) {
-                return (url.indexOf('?') >= 0 ? url.substring(0, url.indexOf('?')) : url)
-                        .toLowerCase().endsWith(item);
+        final CaseInsensitiveStringSet extensions = prerenderConfig.getExtensionsToIgnoreSet();
+        final int end = endOfPath(url);
+        final int segmentStart = url.lastIndexOf('/', end - 1) + 1;
+        for (int dot = url.indexOf('.', segmentStart); dot >= 0 && dot < end; dot = url.indexOf('.', dot + 1)) {
+            if (extensions.contains(url, dot, end)) {
+                return true;
             }
-        });
+        }
+        return false;
     }
 
-    private boolean isInWhiteList(final String url, List<String> whitelist) {
-        return from(whitelist).anyMatch(new Predicate<String>() {
-            @Override
-            public boolean apply(String regex) {
-                return Pattern.compile(regex).matcher(url).matches();
+    private int endOfPath(String url) {
+        for (int i = 0; i < url.length(); i++) {
+            final char c = url.charAt(i);
+            if (c == '?' || c == '#') {
+                return i;
             }
-        });
+        }
+        return url.length();
+    }
+
+    private boolean isInWhiteList(final String url, UrlPatternSet whitelist) {
+        return whitelist.matches(url);
     }
 
     private boolean beforeRender(HttpServletRequest request, HttpServletResponse response) throws IOException {
         if (preRenderEventHandler != null) {
+            final long start = System.nanoTime();
             final String html = preRenderEventHandler.beforeRender(request);
+            metrics.time("handler", "beforeRender", System.nanoTime() - start);
             if (isNotBlank(html)) {
                 final PrintWriter writer = response.getWriter();
                 writer.write(html);
@@ -334,45 +672,955 @@ public class PrerenderSeoService {
     }
 
     private boolean proxyPrerenderedPageResponse(HttpServletRequest request, HttpServletResponse response)
-            throws IOException, URISyntaxException {
-        final String apiUrl = getApiUrl(getFullUrl(request));
-        log.info(String.format("Prerender proxy will send request to:%s", apiUrl));
+            throws IOException {
+        final String url = getFullUrl(request);
+        final PrerenderedPage cachedPage = getCachedPage(url);
+        if (cachedPage != null && isFresh(cachedPage)) {
+            log.trace(String.format("Prerender cache hit for %s", url));
+            metrics.count("cache", "hit", 1);
+            responsePage(request, response, cachedPage);
+            return true;
+        }
+
+        final PrerenderEndpoint endpoint = endpointPool.choose(url);
+        final String apiUrl = getApiUrl(endpoint, url);
         final HttpGet getMethod = getHttpGet(apiUrl);
-        copyRequestHeaders(request, getMethod);
+        copyRequestHeaders(request, getMethod, endpoint);
         withPrerenderToken(getMethod);
-        CloseableHttpResponse prerenderServerResponse = null;
+        if (isCaching()) {
+            // the page is cached for every client, so never let a bot's Accept-Encoding pick a coding we can't serve
+            getMethod.setHeader(ACCEPT_ENCODING, PrerenderedPage.GZIP);
+            withValidators(getMethod, cachedPage);
+        }
+
+        if (cachedPage != null && isRevalidatable(cachedPage)) {
+            log.trace(String.format("Serving stale %s while it is refreshed", url));
+            metrics.count("cache", "stale", 1);
+            refreshInBackground(url, endpoint, getMethod, cachedPage);
+            responsePage(request, response, cachedPage);
+            return true;
+        }
+        if (isCaching()) {
+            metrics.count("cache", "miss", 1);
+        }
+        final PrerenderedPage stalePage = cachedPage != null && isUsableOnError(cachedPage) ? cachedPage : null;
+        log.info(String.format("Prerender proxy will send request to:%s", apiUrl));
 
+        if (asyncHttpClient != null && request.isAsyncSupported()) {
+            if (!tryAcquirePermits(endpoint)) {
+                log.trace(String.format("Prerender call is rejected, not rendering %s", url));
+                return serveStale(request, response, url, stalePage);
+            }
+            proxyAsync(request, response, url, endpoint, getMethod, cachedPage, stalePage);
+            return true;
+        }
+
+        if (requestCoalescer != null) {
+            final PrerenderedPage page;
+            try {
+                page = loadCoalesced(url, endpoint, getMethod, cachedPage);
+            } catch (IOException e) {
+                if (serveStale(request, response, url, stalePage)) {
+                    return true;
+                }
+                throw e;
+            }
+            if ((page == null || isServerError(page.getStatusCode())) && serveStale(request, response, url, stalePage)) {
+                return true;
+            }
+            if (page == null) {
+                return false;
+            }
+            responsePage(request, response, page);
+            return true;
+        }
+
+        final CloseableHttpResponse prerenderServerResponse;
+        try {
+            prerenderServerResponse = execute(url, endpoint, getMethod);
+        } catch (IOException e) {
+            if (serveStale(request, response, url, stalePage)) {
+                return true;
+            }
+            throw e;
+        }
         try {
-            prerenderServerResponse = httpClient.execute(getMethod);
-            response.setStatus(prerenderServerResponse.getStatusLine().getStatusCode());
-            copyResponseHeaders(prerenderServerResponse, response);
-            String html = getResponseHtml(prerenderServerResponse);
-            html = afterRender(request, response, prerenderServerResponse, html);
-            responseEntity(html, response);
+            if (stalePage != null && isServerError(prerenderServerResponse.getStatusLine().getStatusCode())
+                    && serveStale(request, response, url, stalePage)) {
+                return true;
+            }
+            responseFromPrerender(request, response, url, prerenderServerResponse, cachedPage);
             return true;
         } finally {
             closeQuietly(prerenderServerResponse);
         }
     }
 
-    private String afterRender(HttpServletRequest clientRequest, HttpServletResponse clientResponse, CloseableHttpResponse prerenderServerResponse, String responseHtml) {
+    private CloseableHttpResponse execute(String url, PrerenderEndpoint endpoint, HttpGet getMethod)
+            throws IOException {
+        if (hedgePolicy == null || endpointPool.getEndpoints().size() < 2) {
+            return execute(endpoint, getMethod);
+        }
+        return executeHedged(url, endpoint, getMethod);
+    }
+
+    /**
+     * Call a prerender endpoint through its circuit breaker and within the concurrency limit, when they are
+     * enabled. Only the wait for the render holds a permit, and its latency and outcome feed both guards and the
+     * endpoint's outlier detection. A call aborted because its hedge won is not held against the endpoint.
+     */
+    private CloseableHttpResponse execute(PrerenderEndpoint endpoint, HttpGet getMethod) throws IOException {
+        acquirePermits(endpoint, getMethod);
+        final long start = System.nanoTime();
+        boolean succeeded = false;
+        String status = "error";
+        try {
+            final CloseableHttpResponse prerenderServerResponse = httpClient.execute(getMethod);
+            if (prerenderServerResponse != null) {
+                final int statusCode = prerenderServerResponse.getStatusLine().getStatusCode();
+                status = String.valueOf(statusCode);
+                succeeded = !isServerError(statusCode);
+            }
+            return prerenderServerResponse;
+        } finally {
+            final long latency = System.nanoTime() - start;
+            if (!succeeded && getMethod.isAborted()) {
+                status = "aborted";
+                releaseAbortedPermits(endpoint);
+            } else {
+                releasePermits(endpoint, latency, succeeded);
+            }
+            metrics.time("upstream", status, latency);
+            if (succeeded && hedgePolicy != null) {
+                hedgePolicy.recordLatency(latency);
+            }
+        }
+    }
+
+    /**
+     * Send the call to {@code endpoint} and, when it has not answered within the hedge delay and the budget allows,
+     * the same call to another endpoint. The first answer that is not a server error wins and the other call is
+     * aborted; when both fail, the last failure is returned.
+     */
+    private CloseableHttpResponse executeHedged(String url, PrerenderEndpoint endpoint, HttpGet getMethod)
+            throws IOException {
+        hedgePolicy.onCall();
+        final CompletionService<CloseableHttpResponse> calls =
+                new ExecutorCompletionService<CloseableHttpResponse>(hedgeExecutor);
+        final Map<Future<CloseableHttpResponse>, HttpGet> methodsByCall = Maps.newHashMap();
+        HttpGet winner = null;
+        try {
+            try {
+                methodsByCall.put(calls.submit(newCall(endpoint, getMethod)), getMethod);
+            } catch (RejectedExecutionException e) {
+                metrics.count("hedge", "rejected", 1);
+                return execute(endpoint, getMethod);
+            }
+            Future<CloseableHttpResponse> done = calls.poll(hedgePolicy.getDelayNanos(), TimeUnit.NANOSECONDS);
+            if (done == null) {
+                final PrerenderEndpoint other = endpointPool.chooseOther(url, endpoint);
+                if (other != null && hedgePolicy.tryHedge()) {
+                    log.trace(String.format("Prerender of %s is slow, hedging it on %s", url, other.getUrl()));
+                    final HttpGet hedge = copyFor(other, url, getMethod);
+                    try {
+                        methodsByCall.put(calls.submit(newCall(other, hedge)), hedge);
+                    } catch (RejectedExecutionException e) {
+                        log.trace(String.format("Hedge pool is full, not hedging %s", url));
+                        metrics.count("hedge", "rejected", 1);
+                    }
+                }
+            }
+            for (int pending = methodsByCall.size(); ; pending--) {
+                if (done == null) {
+                    done = calls.take();
+                }
+                final HttpGet method = methodsByCall.get(done);
+                final CloseableHttpResponse response;
+                try {
+                    response = getResult(done);
+                } catch (IOException e) {
+                    if (pending == 1) {
+                        throw e;
+                    }
+                    done = null;
+                    continue;
+                }
+                if (pending == 1 || !isServerError(response.getStatusLine().getStatusCode())) {
+                    winner = method;
+                    return response;
+                }
+                closeQuietly(response);
+                done = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(String.format("Interrupted while rendering %s", url));
+        } finally {
+            for (HttpGet method : methodsByCall.values()) {
+                if (method != winner) {
+                    method.abort();
+                }
+            }
+        }
+    }
+
+    private Callable<CloseableHttpResponse> newCall(final PrerenderEndpoint endpoint, final HttpGet method) {
+        return new Callable<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse call() throws Exception {
+                final CloseableHttpResponse response = execute(endpoint, method);
+                if (method.isAborted()) {
+                    closeQuietly(response);
+                }
+                return response;
+            }
+        };
+    }
+
+    /**
+     * The same prerender call, sent to another endpoint.
+     */
+    private HttpGet copyFor(PrerenderEndpoint endpoint, String url, HttpGet getMethod) {
+        final HttpGet copy = getHttpGet(getApiUrl(endpoint, url));
+        copy.setHeaders(getMethod.getAllHeaders());
+        if (copy.containsHeader(HOST)) {
+            copy.setHeader(HOST, endpoint.getHostHeader());
+        }
+        return copy;
+    }
+
+    private static CloseableHttpResponse getResult(Future<CloseableHttpResponse> call)
+            throws IOException, InterruptedException {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private void acquirePermits(PrerenderEndpoint endpoint, HttpGet getMethod) throws PrerenderRejectedException {
+        final CircuitBreaker circuitBreaker = endpoint.getCircuitBreaker();
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            throw new CircuitBreakerOpenException(String.format("Circuit breaker is open, not rendering %s",
+                    getMethod.getURI()));
+        }
+        if (concurrencyLimiter != null && !concurrencyLimiter.acquire()) {
+            if (circuitBreaker != null) {
+                circuitBreaker.release();
+            }
+            throw new ConcurrencyLimitExceededException(String.format(
+                    "Prerender concurrency limit %d reached, not rendering %s", concurrencyLimiter.getLimit(),
+                    getMethod.getURI()));
+        }
+        endpoint.onStart();
+    }
+
+    /**
+     * Non-blocking variant of {@link #acquirePermits}, for async mode.
+     */
+    private boolean tryAcquirePermits(PrerenderEndpoint endpoint) {
+        final CircuitBreaker circuitBreaker = endpoint.getCircuitBreaker();
+        if (circuitBreaker != null && !circuitBreaker.tryAcquire()) {
+            return false;
+        }
+        if (concurrencyLimiter != null && !concurrencyLimiter.tryAcquire()) {
+            if (circuitBreaker != null) {
+                circuitBreaker.release();
+            }
+            return false;
+        }
+        endpoint.onStart();
+        return true;
+    }
+
+    private void releasePermits(PrerenderEndpoint endpoint, long latencyNanos, boolean succeeded) {
+        endpoint.onFinish(succeeded);
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release(latencyNanos, succeeded);
+        }
+        if (endpoint.getCircuitBreaker() != null) {
+            endpoint.getCircuitBreaker().onResult(latencyNanos, succeeded);
+        }
+    }
+
+    /**
+     * Give back the permits of a call that was aborted, without counting it as a failure.
+     */
+    private void releaseAbortedPermits(PrerenderEndpoint endpoint) {
+        endpoint.onAbort();
+        if (concurrencyLimiter != null) {
+            concurrencyLimiter.release();
+        }
+        if (endpoint.getCircuitBreaker() != null) {
+            endpoint.getCircuitBreaker().release();
+        }
+    }
+
+    /**
+     * Serve the page kept past its TTL for upstream failures, if there is one.
+     */
+    private boolean serveStale(HttpServletRequest request, HttpServletResponse response, String url,
+                               PrerenderedPage stalePage) throws IOException {
+        if (stalePage == null) {
+            return false;
+        }
+        log.warn(String.format("Prerender service failed for %s, serving stale page", url));
+        metrics.count("cache", "staleOnError", 1);
+        responsePage(request, response, stalePage);
+        return true;
+    }
+
+    /**
+     * Refresh a stale page off the request thread. With request coalescing, the refresh and any foreground render of
+     * the same url share one prerender call.
+     */
+    private void refreshInBackground(final String url, final PrerenderEndpoint endpoint, final HttpGet getMethod,
+                                     final PrerenderedPage cachedPage) {
+        backgroundRefresher.refresh(url, new Callable<PrerenderedPage>() {
+            @Override
+            public PrerenderedPage call() throws Exception {
+                return requestCoalescer != null ? loadCoalesced(url, endpoint, getMethod, cachedPage)
+                        : fetchPage(url, endpoint, getMethod, cachedPage);
+            }
+        });
+    }
+
+    /**
+     * Replace the bot's own conditional headers, which would make the prerender service answer 304 with nothing to
+     * cache, by the validators of the cached page, if any.
+     */
+    private void withValidators(HttpRequest proxyRequest, PrerenderedPage cachedPage) {
+        for (String conditionalHeader : CONDITIONAL_HEADERS) {
+            proxyRequest.removeHeaders(conditionalHeader);
+        }
+        if (cachedPage == null) {
+            return;
+        }
+        final Header etag = cachedPage.getFirstHeader(ETAG);
+        if (etag != null) {
+            proxyRequest.setHeader(IF_NONE_MATCH, etag.getValue());
+        }
+        final Header lastModified = cachedPage.getFirstHeader(LAST_MODIFIED);
+        if (lastModified != null) {
+            proxyRequest.setHeader(IF_MODIFIED_SINCE, lastModified.getValue());
+        }
+    }
+
+    private boolean isFresh(PrerenderedPage page) {
+        return getAge(page) < prerenderConfig.getCacheTtl();
+    }
+
+    private boolean isRevalidatable(PrerenderedPage page) {
+        return backgroundRefresher != null
+                && getAge(page) < prerenderConfig.getCacheTtl() + prerenderConfig.getCacheStaleWhileRevalidate();
+    }
+
+    private boolean isUsableOnError(PrerenderedPage page) {
+        return getAge(page) < prerenderConfig.getCacheTtl() + prerenderConfig.getCacheStaleIfError();
+    }
+
+    private long getAge(PrerenderedPage page) {
+        return now() - page.getCreatedAt();
+    }
+
+    private static boolean isServerError(int statusCode) {
+        return statusCode >= HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    /**
+     * Release the container thread while the prerender service renders the page; the response is written and
+     * the AsyncContext completed when the render arrives.
+     */
+    private void proxyAsync(HttpServletRequest request, HttpServletResponse response, String url,
+                            PrerenderEndpoint endpoint, HttpGet getMethod, PrerenderedPage cachedPage,
+                            PrerenderedPage stalePage) {
+        final AsyncContext asyncContext = request.startAsync(request, response);
+        final AsyncProxyCallback callback = new AsyncProxyCallback(asyncContext, url, endpoint, cachedPage, stalePage);
+        asyncContext.addListener(callback);
+        callback.future = asyncHttpClient.execute(getMethod, callback);
+    }
+
+    private void responseFromPrerender(HttpServletRequest request, HttpServletResponse response, String url,
+                                       HttpResponse prerenderServerResponse, PrerenderedPage cachedPage)
+            throws IOException {
+        if (isCaching()) {
+            responsePage(request, response, bufferPage(url, prerenderServerResponse, cachedPage));
+        } else if (htmlTransformers != null && isTransformable(prerenderServerResponse)) {
+            responseTransformedPage(request, response, url, prerenderServerResponse);
+        } else {
+            responsePrerenderedPage(request, response, prerenderServerResponse);
+        }
+    }
+
+    /**
+     * Fetch the page once for all concurrent requests of the same url, whichever endpoint each of them picked.
+     * Returns null when this request gave up waiting for the in-flight render, so it falls through to the normal
+     * chain.
+     */
+    private PrerenderedPage loadCoalesced(final String url, final PrerenderEndpoint endpoint, final HttpGet getMethod,
+                                          final PrerenderedPage cachedPage) throws IOException {
+        try {
+            return requestCoalescer.load(url, new Callable<PrerenderedPage>() {
+                @Override
+                public PrerenderedPage call() throws Exception {
+                    return fetchPage(url, endpoint, getMethod, cachedPage);
+                }
+            });
+        } catch (TimeoutException e) {
+            log.warn(String.format("Timed out waiting for in-flight prerender of %s", url));
+            return null;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException(e);
+        }
+    }
+
+    private PrerenderedPage fetchPage(String url, PrerenderEndpoint endpoint, HttpGet getMethod,
+                                      PrerenderedPage cachedPage) throws IOException {
+        CloseableHttpResponse prerenderServerResponse = null;
+        try {
+            prerenderServerResponse = execute(url, endpoint, getMethod);
+            return bufferPage(url, prerenderServerResponse, cachedPage);
+        } finally {
+            closeQuietly(prerenderServerResponse);
+        }
+    }
+
+    /**
+     * Look the page up in memory first, then in the disk store.
+     */
+    private PrerenderedPage getCachedPage(String url) {
+        final PrerenderedPage page = pageCache != null ? pageCache.get(url) : null;
+        if (page != null || diskPageStore == null) {
+            return page;
+        }
+        return diskPageStore.get(url);
+    }
+
+    private boolean isCaching() {
+        return pageCache != null || diskPageStore != null;
+    }
+
+    /**
+     * Read the whole render into a PrerenderedPage, transformed by the html transformers, and keep it gzip compressed
+     * in the page caches when there are any. A 304 answer to the validators of {@code cachedPage} renews the cached page instead.
+     */
+    private PrerenderedPage bufferPage(String url, HttpResponse prerenderServerResponse, PrerenderedPage cachedPage)
+            throws IOException {
+        if (cachedPage != null && prerenderServerResponse.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            EntityUtils.consume(prerenderServerResponse.getEntity());
+            log.trace(String.format("Prerendered page %s is not modified", url));
+            final PrerenderedPage page = cachedPage.revalidate(headerForwarder.getForwardedResponseHeaders(prerenderServerResponse), now());
+            cachePage(url, page);
+            return page;
+        }
+        PrerenderedPage page = PrerenderedPage.from(prerenderServerResponse,
+                headerForwarder.getForwardedResponseHeaders(prerenderServerResponse), now());
+        if (htmlTransformers != null) {
+            page = transformPage(url, page);
+        }
+        if (isCaching() && isCacheable(page)) {
+            page = page.gzip();
+            cachePage(url, page);
+        }
+        return page;
+    }
+
+    /**
+     * Keep a page in the caches without the headers set for the client that got it, e.g. its session cookie.
+     */
+    private void cachePage(String url, PrerenderedPage renderedPage) {
+        final PrerenderedPage page = renderedPage.withHeaders(
+                headerForwarder.getSharedResponseHeaders(renderedPage.getHeaders()));
+        if (pageCache != null) {
+            pageCache.put(url, page);
+        }
+        if (diskPageStore != null) {
+            diskPageStore.put(url, page);
+        }
+    }
+
+    private long now() {
+        return pageCache != null ? pageCache.now() : System.currentTimeMillis();
+    }
+
+    /**
+     * Serve a buffered page. A gzip stored body goes out as it is to clients that accept gzip, unless an afterRender
+     * handler needs the html; other clients get it decompressed while it is written. The gzip representation gets
+     * its own ETag, see {@link #toGzipEtag}.
+     */
+    private void responsePage(HttpServletRequest request, HttpServletResponse response, PrerenderedPage page)
+            throws IOException {
+        final boolean gzipStored = PrerenderedPage.GZIP.equals(page.getContentEncoding());
+        final boolean gzipServed = gzipStored && preRenderEventHandler == null
+                && acceptsGzip(request.getHeader(ACCEPT_ENCODING));
+        final Header storedEtag = page.getFirstHeader(ETAG);
+        final String etag = storedEtag == null ? null
+                : gzipServed ? toGzipEtag(storedEtag.getValue()) : storedEtag.getValue();
+        if (isNotModified(request, page, etag)) {
+            response.setStatus(HttpStatus.SC_NOT_MODIFIED);
+            for (Header header : page.getHeaders()) {
+                if (NOT_MODIFIED_HEADERS.containsHeader(header.getName())) {
+                    response.addHeader(header.getName(), ETAG.equalsIgnoreCase(header.getName()) ? etag
+                            : header.getValue());
+                }
+            }
+            if (gzipStored) {
+                response.addHeader(VARY, ACCEPT_ENCODING);
+            }
+            return;
+        }
+        final HttpResponse pageResponse = page.toHttpResponse();
+        if (!gzipStored) {
+            responsePrerenderedPage(request, response, pageResponse);
+            return;
+        }
+        response.addHeader(VARY, ACCEPT_ENCODING);
+        if (!gzipServed) {
+            responsePrerenderedPage(request, response, pageResponse);
+            return;
+        }
+        response.setStatus(page.getStatusCode());
+        copyResponseHeaders(pageResponse, response);
+        response.setHeader(CONTENT_ENCODING, PrerenderedPage.GZIP);
+        if (etag != null) {
+            response.setHeader(ETAG, etag);
+        }
+        final ByteBuffer body = page.getBody();
+        response.setContentLength(body.remaining());
+        writeBody(body, response.getOutputStream());
+    }
+
+    /**
+     * Answer a bot's conditional GET from the cache: If-None-Match is checked against the ETag of the representation
+     * that would be served (weak comparison), and only when it is absent If-Modified-Since against Last-Modified.
+     * Skipped when an afterRender handler may change the page.
+     */
+    private boolean isNotModified(HttpServletRequest request, PrerenderedPage page, String etag) {
+        if (preRenderEventHandler != null || page.getStatusCode() != HttpStatus.SC_OK) {
+            return false;
+        }
+        final String ifNoneMatch = request.getHeader(IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return etag != null && matchesEtag(ifNoneMatch, etag);
+        }
+        final String ifModifiedSince = request.getHeader(IF_MODIFIED_SINCE);
+        final Header lastModified = page.getFirstHeader(LAST_MODIFIED);
+        if (ifModifiedSince == null || lastModified == null) {
+            return false;
+        }
+        final Date since = DateUtils.parseDate(ifModifiedSince);
+        final Date modified = DateUtils.parseDate(lastModified.getValue());
+        return since != null && modified != null && !modified.after(since);
+    }
+
+    /**
+     * The ETag of the gzip encoded representation of a page: the upstream one with "-gzip" appended to its opaque tag,
+     * so a strong ETag never names two different byte sequences.
+     */
+    static String toGzipEtag(String etag) {
+        final String tag = etag.trim();
+        return tag.endsWith("\"") ? tag.substring(0, tag.length() - 1) + "-gzip\"" : tag + "-gzip";
+    }
+
+    private static boolean matchesEtag(String ifNoneMatch, String etag) {
+        final String opaqueTag = stripWeak(etag);
+        for (String candidate : ifNoneMatch.split(",")) {
+            final String tag = candidate.trim();
+            if ("*".equals(tag) || stripWeak(tag).equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String stripWeak(String etag) {
+        final String tag = etag.trim();
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    /**
+     * Whether an Accept-Encoding header value allows gzip, either by name or through "*", with a non-zero q value.
+     */
+    static boolean acceptsGzip(String acceptEncoding) {
+        if (StringUtils.isBlank(acceptEncoding)) {
+            return false;
+        }
+        boolean wildcard = false;
+        for (HeaderElement coding : new BasicHeader(ACCEPT_ENCODING, acceptEncoding).getElements()) {
+            final boolean accepted = getQuality(coding) > 0;
+            if (PrerenderedPage.GZIP.equalsIgnoreCase(coding.getName()) || "x-gzip".equalsIgnoreCase(coding.getName())) {
+                return accepted;
+            }
+            if ("*".equals(coding.getName())) {
+                wildcard = accepted;
+            }
+        }
+        return wildcard;
+    }
+
+    private static float getQuality(HeaderElement coding) {
+        final NameValuePair quality = coding.getParameterByName("q");
+        if (quality == null || quality.getValue() == null) {
+            return 1;
+        }
+        try {
+            return Float.parseFloat(quality.getValue().trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    private void writeBody(ByteBuffer body, OutputStream output) throws IOException {
+        metrics.count("bytesProxied", null, body.remaining());
+        if (body.hasArray()) {
+            output.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+        } else {
+            final byte[] buffer = streamBuffer.get();
+            while (body.hasRemaining()) {
+                final int length = Math.min(buffer.length, body.remaining());
+                body.get(buffer, 0, length);
+                output.write(buffer, 0, length);
+            }
+        }
+        output.flush();
+    }
+
+    private void responsePrerenderedPage(HttpServletRequest request, HttpServletResponse response,
+                                         HttpResponse prerenderResponse) throws IOException {
+        response.setStatus(prerenderResponse.getStatusLine().getStatusCode());
+        if (preRenderEventHandler == null || !isDecodable(prerenderResponse)) {
+            copyResponseHeaders(prerenderResponse, response);
+            streamEntity(prerenderResponse.getEntity(), response);
+            return;
+        }
+        // the async client does not decompress, so the handler would get gzip bytes
+        response.setCharacterEncoding(getContentCharSet(prerenderResponse.getEntity()));
+        copyDecompressedResponseHeaders(prerenderResponse, response);
+        String html = getResponseHtml(prerenderResponse);
+        html = afterRender(request, response, prerenderResponse, html);
+        responseEntity(html, response);
+    }
+
+    /**
+     * Stream a live render to the client through the html transformers, decompressed, so without its
+     * Content-Encoding and Content-Length headers. An afterRender handler gets the transformed html.
+     */
+    private void responseTransformedPage(HttpServletRequest request, HttpServletResponse response, String url,
+                                         HttpResponse prerenderResponse) throws IOException {
+        final HttpEntity entity = getDecompressedEntity(prerenderResponse);
+        final Charset charset = getHtmlCharset(entity);
+        response.setStatus(prerenderResponse.getStatusLine().getStatusCode());
+        response.setCharacterEncoding(charset.name());
+        copyDecompressedResponseHeaders(prerenderResponse, response);
+        final Reader input = new InputStreamReader(entity.getContent(), charset);
+        try {
+            if (preRenderEventHandler == null) {
+                final CountingOutputStream output = new CountingOutputStream(response.getOutputStream());
+                htmlTransformers.transform(url, input, new OutputStreamWriter(output, charset));
+                metrics.count("bytesProxied", null, output.getCount());
+                return;
+            }
+            final StringWriter html = new StringWriter();
+            htmlTransformers.transform(url, input, html);
+            responseEntity(afterRender(request, response, prerenderResponse, html.toString()), response);
+        } finally {
+            closeQuietly(input);
+        }
+    }
+
+    /**
+     * The page with its html body transformed and gzip compressed, or the page itself when it is not html.
+     */
+    private PrerenderedPage transformPage(String url, PrerenderedPage page) throws IOException {
+        final HttpResponse pageResponse = page.toHttpResponse();
+        if (!isTransformable(pageResponse)) {
+            return page;
+        }
+        final HttpEntity entity = pageResponse.getEntity();
+        final Charset charset = getHtmlCharset(entity);
+        final ByteArrayOutputStream transformed = new ByteArrayOutputStream(page.getBody().remaining() / 2 + 64);
+        final Reader input = new InputStreamReader(entity.getContent(), charset);
+        try {
+            htmlTransformers.transform(url, input, new OutputStreamWriter(new GZIPOutputStream(transformed), charset));
+        } finally {
+            closeQuietly(input);
+        }
+        return new PrerenderedPage(page.getStatusCode(), page.getHeaders(), ByteBuffer.wrap(transformed.toByteArray()),
+                PrerenderedPage.GZIP, page.getCreatedAt());
+    }
+
+    /**
+     * The entity of a render, gunzipped when it is gzip encoded.
+     */
+    private static HttpEntity getDecompressedEntity(HttpResponse prerenderResponse) {
+        final Header encoding = prerenderResponse.getFirstHeader(CONTENT_ENCODING);
+        final HttpEntity entity = prerenderResponse.getEntity();
+        return entity != null && encoding != null && PrerenderedPage.GZIP.equalsIgnoreCase(encoding.getValue().trim())
+                ? new GzipDecompressingEntity(entity) : entity;
+    }
+
+    /**
+     * Copy the forwarded headers of a render whose body is sent decompressed, so without Content-Encoding and
+     * Content-Length. Only for identity or gzip bodies, see {@link #isDecodable}.
+     */
+    private void copyDecompressedResponseHeaders(HttpResponse prerenderResponse, HttpServletResponse response) {
+        for (Header header : headerForwarder.getForwardedResponseHeaders(prerenderResponse)) {
+            if (!CONTENT_LENGTH.equalsIgnoreCase(header.getName())
+                    && !CONTENT_ENCODING.equalsIgnoreCase(header.getName())) {
+                response.addHeader(header.getName(), header.getValue());
+            }
+        }
+    }
+
+    /**
+     * Whether a render is html in an encoding the transformers can read: identity or gzip.
+     */
+    private static boolean isTransformable(HttpResponse prerenderResponse) {
+        final Header contentType = prerenderResponse.getFirstHeader(CONTENT_TYPE);
+        return prerenderResponse.getEntity() != null && contentType != null
+                && contentType.getValue().toLowerCase(Locale.ENGLISH).contains("html")
+                && isDecodable(prerenderResponse);
+    }
+
+    /**
+     * Whether the body of a render can be read as text: identity or gzip encoded. Deflate or br bodies are passed on
+     * as they are.
+     */
+    private static boolean isDecodable(HttpResponse prerenderResponse) {
+        final Header encoding = prerenderResponse.getFirstHeader(CONTENT_ENCODING);
+        return encoding == null || PrerenderedPage.GZIP.equalsIgnoreCase(encoding.getValue().trim());
+    }
+
+    /**
+     * The charset of the html, or ISO-8859-1, which leaves bytes of an undeclared charset as they are.
+     */
+    private static Charset getHtmlCharset(HttpEntity entity) {
+        try {
+            final ContentType contentType = ContentType.get(entity);
+            if (contentType != null && contentType.getCharset() != null) {
+                return contentType.getCharset();
+            }
+        } catch (ParseException e) {
+            log.trace("Html has an invalid Content-Type");
+        } catch (UnsupportedCharsetException e) {
+            log.trace("Html has an unsupported charset");
+        }
+        return Charsets.ISO_8859_1;
+    }
+
+    /**
+     * Server errors are transient, so they are never cached, and a 304 has no page to cache.
+     */
+    /**
+     * Whether a page may be shared with other crawlers: not a server error, not marked private, no-store or no-cache,
+     * and not varying on the client's cookies or credentials.
+     */
+    private boolean isCacheable(PrerenderedPage page) {
+        if (isServerError(page.getStatusCode()) || page.getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+            return false;
+        }
+        for (Header header : page.getHeaders()) {
+            if (CACHE_CONTROL.equalsIgnoreCase(header.getName())
+                    && hasToken(header.getValue(), UNCACHEABLE_DIRECTIVES)) {
+                return false;
+            }
+            if (VARY.equalsIgnoreCase(header.getName()) && hasToken(header.getValue(), UNCACHEABLE_VARY)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether a comma separated header value has one of {@code tokens}, ignoring case and directive arguments.
+     */
+    private static boolean hasToken(String value, CaseInsensitiveStringSet tokens) {
+        for (String element : value.split(",")) {
+            final int end = element.indexOf('=');
+            if (tokens.contains(element.substring(0, end >= 0 ? end : element.length()).trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private String afterRender(HttpServletRequest clientRequest, HttpServletResponse clientResponse, HttpResponse prerenderResponse, String responseHtml) {
         if (preRenderEventHandler != null) {
-            return preRenderEventHandler.afterRender(clientRequest, clientResponse, prerenderServerResponse, responseHtml);
+            final long start = System.nanoTime();
+            try {
+                return preRenderEventHandler.afterRender(clientRequest, clientResponse, prerenderResponse, responseHtml);
+            } finally {
+                metrics.time("handler", "afterRender", System.nanoTime() - start);
+            }
         }
         return responseHtml;
     }
 
     private void withPrerenderToken(HttpRequest proxyRequest) {
-        final String token = prerenderConfig.getPrerenderToken();
+        final Header tokenHeader = prerenderConfig.getPrerenderTokenHeader();
         //for new version prerender with token.
-        if (isNotBlank(token)) {
-            proxyRequest.addHeader("X-Prerender-Token", token);
+        if (tokenHeader != null) {
+            proxyRequest.addHeader(tokenHeader);
         }
     }
 
     private String getFullUrl(HttpServletRequest request) {
         final String url = getRequestURL(request);
         final String queryString = request.getQueryString();
-        return isNotBlank(queryString) ? String.format("%s?%s", url, queryString) : url;
+        return canonicalize(isNotBlank(queryString) ? String.format("%s?%s", url, queryString) : url);
+    }
+
+    private String canonicalize(String url) {
+        return urlCanonicalizer != null ? urlCanonicalizer.canonicalize(url) : url;
+    }
+
+    /**
+     * Completes an async prerender: writes the render on a container thread, or, when the upstream call fails, is
+     * cancelled or the async request times out, serves the stale page if there is one and otherwise dispatches the
+     * request back to the normal chain.
+     */
+    private class AsyncProxyCallback implements FutureCallback<HttpResponse>, AsyncListener {
+        private final AsyncContext asyncContext;
+        private final String url;
+        private final PrerenderEndpoint endpoint;
+        private final PrerenderedPage cachedPage;
+        private final PrerenderedPage stalePage;
+        private final AtomicBoolean done = new AtomicBoolean();
+        private final long start = System.nanoTime();
+        private volatile Future<HttpResponse> future;
+
+        AsyncProxyCallback(AsyncContext asyncContext, String url, PrerenderEndpoint endpoint,
+                           PrerenderedPage cachedPage, PrerenderedPage stalePage) {
+            this.asyncContext = asyncContext;
+            this.url = url;
+            this.endpoint = endpoint;
+            this.cachedPage = cachedPage;
+            this.stalePage = stalePage;
+        }
+
+        @Override
+        public void completed(final HttpResponse prerenderServerResponse) {
+            if (!done.compareAndSet(false, true)) {
+                return;
+            }
+            final int statusCode = prerenderServerResponse.getStatusLine().getStatusCode();
+            final boolean serverError = isServerError(statusCode);
+            releasePermit(String.valueOf(statusCode), !serverError);
+            final boolean serveStale = stalePage != null && serverError;
+            asyncContext.start(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (serveStale) {
+                            serveStale(getRequest(), getResponse(), url, stalePage);
+                        } else {
+                            responseFromPrerender(getRequest(), getResponse(), url, prerenderServerResponse,
+                                    cachedPage);
+                        }
+                    } catch (Exception e) {
+                        log.error("Prerender service error", e);
+                    } finally {
+                        asyncContext.complete();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (done.compareAndSet(false, true)) {
+                releasePermit("error", false);
+                log.error("Prerender service error", e);
+                fallback();
+            }
+        }
+
+        @Override
+        public void cancelled() {
+            if (done.compareAndSet(false, true)) {
+                releasePermit("cancelled", false);
+                fallback();
+            }
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) throws IOException {
+            if (done.compareAndSet(false, true)) {
+                releasePermit("timeout", false);
+                log.error(String.format("Prerender service timed out for %s", url));
+                cancelUpstream();
+                if (stalePage != null) {
+                    respondStale();
+                } else {
+                    fallback();
+                }
+            }
+        }
+
+        @Override
+        public void onError(AsyncEvent event) throws IOException {
+            if (done.compareAndSet(false, true)) {
+                releasePermit("error", false);
+                cancelUpstream();
+            }
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) throws IOException {
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) throws IOException {
+        }
+
+        private void cancelUpstream() {
+            final Future<HttpResponse> upstream = future;
+            if (upstream != null) {
+                upstream.cancel(true);
+            }
+        }
+
+        private void releasePermit(String status, boolean succeeded) {
+            final long latency = System.nanoTime() - start;
+            releasePermits(endpoint, latency, succeeded);
+            metrics.time("upstream", status, latency);
+        }
+
+        private HttpServletRequest getRequest() {
+            return (HttpServletRequest) asyncContext.getRequest();
+        }
+
+        private HttpServletResponse getResponse() {
+            return (HttpServletResponse) asyncContext.getResponse();
+        }
+
+        private void fallback() {
+            if (stalePage != null) {
+                asyncContext.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        respondStale();
+                    }
+                });
+                return;
+            }
+            asyncContext.getRequest().setAttribute(ASYNC_FALLBACK_ATTRIBUTE, Boolean.TRUE);
+            asyncContext.dispatch();
+        }
+
+        private void respondStale() {
+            try {
+                serveStale(getRequest(), getResponse(), url, stalePage);
+            } catch (Exception e) {
+                log.error("Prerender service error", e);
+            } finally {
+                asyncContext.complete();
+            }
+        }
     }
 }
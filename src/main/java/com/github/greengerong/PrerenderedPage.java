@@ -0,0 +1,185 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.entity.GzipDecompressingEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.BasicStatusLine;
+import org.apache.http.message.HeaderGroup;
+import org.apache.http.util.EntityUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.apache.http.HttpHeaders.CONTENT_ENCODING;
+import static org.apache.http.HttpHeaders.CONTENT_LENGTH;
+import static org.apache.http.HttpHeaders.CONTENT_TYPE;
+
+/**
+ * A fully buffered prerender server response: status, the headers that are safe to copy back to the client
+ * and the body bytes.
+ * <p/>
+ * The body is a read-only ByteBuffer, either on the heap or a slice of a disk cache segment, and may be stored
+ * gzip compressed.
+ */
+public class PrerenderedPage {
+    public static final String GZIP = "gzip";
+    private static final int HEADER_OVERHEAD = 32;
+    private static final int PAGE_OVERHEAD = 64;
+    private final int statusCode;
+    private final Header[] headers;
+    private final ByteBuffer body;
+    private final String contentEncoding;
+    private final long createdAt;
+
+    public PrerenderedPage(int statusCode, Header[] headers, byte[] body, long createdAt) {
+        this(statusCode, headers, ByteBuffer.wrap(body), null, createdAt);
+    }
+
+    public PrerenderedPage(int statusCode, Header[] headers, ByteBuffer body, String contentEncoding, long createdAt) {
+        this.statusCode = statusCode;
+        this.headers = headers;
+        this.body = body.asReadOnlyBuffer();
+        this.contentEncoding = contentEncoding;
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * Buffer a prerender response. A gzip encoded body is kept as it is, and the Content-Encoding and
+     * Content-Length headers, which describe the body as it is served, are dropped from the stored headers.
+     */
+    public static PrerenderedPage from(HttpResponse response, Header[] headers, long createdAt) throws IOException {
+        final HttpEntity entity = response.getEntity();
+        final byte[] body = entity != null ? EntityUtils.toByteArray(entity) : null;
+        final Header encoding = response.getFirstHeader(CONTENT_ENCODING);
+        final boolean gzipped = encoding != null && GZIP.equalsIgnoreCase(encoding.getValue().trim());
+        final List<Header> stored = Lists.newArrayListWithCapacity(headers.length);
+        for (Header header : headers) {
+            if (!CONTENT_LENGTH.equalsIgnoreCase(header.getName())
+                    && !(gzipped && CONTENT_ENCODING.equalsIgnoreCase(header.getName()))) {
+                stored.add(header);
+            }
+        }
+        return new PrerenderedPage(response.getStatusLine().getStatusCode(), stored.toArray(new Header[stored.size()]),
+                ByteBuffer.wrap(body != null ? body : new byte[0]), gzipped ? GZIP : null, createdAt);
+    }
+
+    /**
+     * This page with a gzip compressed body, compressing it if it is not already. A body in any other encoding is
+     * left as it is.
+     */
+    public PrerenderedPage gzip() throws IOException {
+        if (contentEncoding != null || getFirstHeader(CONTENT_ENCODING) != null) {
+            return this;
+        }
+        final ByteBuffer content = getBody();
+        final ByteArrayOutputStream compressed = new ByteArrayOutputStream(content.remaining() / 4 + 64);
+        final GZIPOutputStream out = new GZIPOutputStream(compressed);
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), content.remaining());
+        } else {
+            final byte[] bytes = new byte[content.remaining()];
+            content.get(bytes);
+            out.write(bytes);
+        }
+        out.close();
+        return new PrerenderedPage(statusCode, headers, ByteBuffer.wrap(compressed.toByteArray()), GZIP, createdAt);
+    }
+
+    /**
+     * This page with other headers and the same body.
+     */
+    public PrerenderedPage withHeaders(Header[] headers) {
+        return headers == this.headers ? this
+                : new PrerenderedPage(statusCode, headers, body, contentEncoding, createdAt);
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public Header[] getHeaders() {
+        return headers;
+    }
+
+    /**
+     * The stored body bytes, compressed when {@link #getContentEncoding()} is not null.
+     */
+    public ByteBuffer getBody() {
+        return body.duplicate();
+    }
+
+    /**
+     * "gzip" when the body is stored compressed, or null.
+     */
+    public String getContentEncoding() {
+        return contentEncoding;
+    }
+
+    /**
+     * This page renewed by a 304 Not Modified: fresh from {@code createdAt}, with the stored headers replaced by
+     * those the 304 carries, except the Content-* ones that describe the stored body.
+     */
+    public PrerenderedPage revalidate(Header[] notModifiedHeaders, long createdAt) {
+        final HeaderGroup updates = new HeaderGroup();
+        for (Header header : notModifiedHeaders) {
+            if (!header.getName().regionMatches(true, 0, "Content-", 0, 8)) {
+                updates.addHeader(header);
+            }
+        }
+        final List<Header> merged = Lists.newArrayList();
+        for (Header header : headers) {
+            if (!updates.containsHeader(header.getName())) {
+                merged.add(header);
+            }
+        }
+        merged.addAll(Arrays.asList(updates.getAllHeaders()));
+        return new PrerenderedPage(statusCode, merged.toArray(new Header[merged.size()]), body, contentEncoding,
+                createdAt);
+    }
+
+    public Header getFirstHeader(String name) {
+        for (Header header : headers) {
+            if (header.getName().equalsIgnoreCase(name)) {
+                return header;
+            }
+        }
+        return null;
+    }
+
+    public long getCreatedAt() {
+        return createdAt;
+    }
+
+    /**
+     * Approximate heap footprint, used to bound the cache by bytes.
+     */
+    public long getSize() {
+        long size = PAGE_OVERHEAD + body.remaining();
+        for (Header header : headers) {
+            size += HEADER_OVERHEAD + 2 * (header.getName().length() + header.getValue().length());
+        }
+        return size;
+    }
+
+    /**
+     * Rebuild an HttpResponse so a buffered page can take the same path as a live prerender response. A compressed
+     * body is decompressed while it is read.
+     */
+    public HttpResponse toHttpResponse() {
+        final BasicHttpResponse response = new BasicHttpResponse(
+                new BasicStatusLine(HttpVersion.HTTP_1_1, statusCode, null));
+        response.setHeaders(headers);
+        final ByteBufferEntity entity = new ByteBufferEntity(body);
+        entity.setContentType(response.getFirstHeader(CONTENT_TYPE));
+        response.setEntity(GZIP.equals(contentEncoding) ? new GzipDecompressingEntity(entity) : entity);
+        return response;
+    }
+}
@@ -0,0 +1,129 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded in-memory cache of prerendered pages, evicted by LRU (entries and bytes) and by TTL.
+ */
+public class PrerenderedPageCache {
+    /**
+     * Wall clock ticker, so page creation times stay meaningful once a page is persisted and read back after a
+     * restart.
+     */
+    public static final Ticker WALL_CLOCK = new Ticker() {
+        @Override
+        public long read() {
+            return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+        }
+    };
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final Ticker ticker;
+    private final LinkedHashMap<String, PrerenderedPage> pages;
+    private long totalBytes;
+
+    public PrerenderedPageCache(int maxEntries, long maxBytes, long ttlMillis) {
+        this(maxEntries, maxBytes, ttlMillis, WALL_CLOCK);
+    }
+
+    public PrerenderedPageCache(int maxEntries, long maxBytes, long ttlMillis, Ticker ticker) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.ticker = ticker;
+        this.pages = new LinkedHashMap<String, PrerenderedPage>(16, 0.75f, true);
+    }
+
+    public synchronized PrerenderedPage get(String url) {
+        final PrerenderedPage page = pages.get(url);
+        if (page == null) {
+            return null;
+        }
+        if (isExpired(page)) {
+            remove(url);
+            return null;
+        }
+        return page;
+    }
+
+    public synchronized void put(String url, PrerenderedPage page) {
+        if (page.getSize() > maxBytes) {
+            remove(url);
+            return;
+        }
+        final PrerenderedPage previous = pages.put(url, page);
+        if (previous != null) {
+            totalBytes -= previous.getSize();
+        }
+        totalBytes += page.getSize();
+        evict();
+    }
+
+    public synchronized void invalidate(String url) {
+        remove(url);
+    }
+
+    /**
+     * Remove every page whose url starts with {@code prefix}.
+     *
+     * @return the number of pages removed.
+     */
+    public synchronized int invalidatePrefix(String prefix) {
+        int removed = 0;
+        final Iterator<Map.Entry<String, PrerenderedPage>> iterator = pages.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, PrerenderedPage> entry = iterator.next();
+            if (entry.getKey().startsWith(prefix)) {
+                totalBytes -= entry.getValue().getSize();
+                iterator.remove();
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+        totalBytes = 0;
+    }
+
+    public synchronized int size() {
+        return pages.size();
+    }
+
+    public synchronized long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * Time in milliseconds on the cache clock, used to stamp newly fetched pages.
+     */
+    public long now() {
+        return TimeUnit.NANOSECONDS.toMillis(ticker.read());
+    }
+
+    private boolean isExpired(PrerenderedPage page) {
+        return now() - page.getCreatedAt() >= ttlMillis;
+    }
+
+    private void remove(String url) {
+        final PrerenderedPage page = pages.remove(url);
+        if (page != null) {
+            totalBytes -= page.getSize();
+        }
+    }
+
+    private void evict() {
+        final Iterator<Map.Entry<String, PrerenderedPage>> iterator = pages.entrySet().iterator();
+        while (iterator.hasNext() && (pages.size() > maxEntries || totalBytes > maxBytes)) {
+            totalBytes -= iterator.next().getValue().getSize();
+            iterator.remove();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.greengerong;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Deduplicates concurrent loads of the same key: the first caller runs the loader on its own thread, and callers
+ * arriving while it is in flight wait, up to a bounded timeout, for that same result.
+ */
+public class RequestCoalescer<V> {
+    private final ConcurrentMap<String, FutureTask<V>> inFlight = new ConcurrentHashMap<String, FutureTask<V>>();
+    private final long timeoutMillis;
+
+    public RequestCoalescer(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * @throws TimeoutException when a waiting caller did not get the in-flight result in time.
+     */
+    public V load(String key, Callable<V> loader) throws Exception {
+        final FutureTask<V> task = new FutureTask<V>(loader);
+        final FutureTask<V> existing = inFlight.putIfAbsent(key, task);
+        if (existing != null) {
+            return unwrap(existing, true);
+        }
+        try {
+            task.run();
+            return unwrap(task, false);
+        } finally {
+            inFlight.remove(key, task);
+        }
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    private V unwrap(FutureTask<V> task, boolean bounded) throws Exception {
+        try {
+            return bounded ? task.get(timeoutMillis, TimeUnit.MILLISECONDS) : task.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Rewrites a page url to one canonical form, so variants of the same page share one render, one cache entry and one
+ * coalesced call.
+ * <p/>
+ * Scheme and host are lower cased and the default port dropped, and percent escapes in the path are upper cased.
+ * A trailing slash is only removed (except for the root path) when asked to, since a site that redirects "/foo" to
+ * "/foo/" would then get its redirect rendered. Query parameters whose name fully matches one of the ignored
+ * patterns (tracking parameters such as utm_source) are dropped and the others are sorted by name, keeping the order
+ * of repeated names. An {@code _escaped_fragment_} parameter is mapped back to the hashbang url it stands for.
+ */
+public class UrlCanonicalizer {
+    private static final String HASHBANG = "#!";
+    private static final Comparator<String> BY_NAME = new Comparator<String>() {
+        @Override
+        public int compare(String parameter, String other) {
+            return getName(parameter).compareTo(getName(other));
+        }
+    };
+    private final UrlPatternSet ignoredParameters;
+    private final boolean stripTrailingSlash;
+
+    public UrlCanonicalizer(Collection<String> ignoredParameterPatterns, boolean stripTrailingSlash) {
+        this.ignoredParameters = ignoredParameterPatterns.isEmpty() ? null
+                : new UrlPatternSet(ignoredParameterPatterns);
+        this.stripTrailingSlash = stripTrailingSlash;
+    }
+
+    public String canonicalize(String url) {
+        final int schemeEnd = url.indexOf("://");
+        if (schemeEnd <= 0) {
+            return url;
+        }
+        final int fragmentStart = url.indexOf('#');
+        final String withoutFragment = fragmentStart >= 0 ? url.substring(0, fragmentStart) : url;
+        String fragment = fragmentStart >= 0 ? url.substring(fragmentStart) : "";
+        final int queryStart = withoutFragment.indexOf('?');
+        final String beforeQuery = queryStart >= 0 ? withoutFragment.substring(0, queryStart) : withoutFragment;
+        final int pathStart = beforeQuery.indexOf('/', schemeEnd + 3);
+        final String scheme = beforeQuery.substring(0, schemeEnd).toLowerCase(Locale.ENGLISH);
+        final String authority = beforeQuery.substring(schemeEnd + 3, pathStart >= 0 ? pathStart : beforeQuery.length());
+        final String path = pathStart >= 0 ? beforeQuery.substring(pathStart) : "";
+
+        final List<String> parameters = Lists.newArrayList();
+        if (queryStart >= 0) {
+            for (String parameter : withoutFragment.substring(queryStart + 1).split("&")) {
+                if (parameter.isEmpty()) {
+                    continue;
+                }
+                final String name = getName(parameter);
+                if (PrerenderSeoService.ESCAPED_FRAGMENT_KEY.equals(name)) {
+                    final String value = decode(parameter.substring(name.length()).replaceFirst("^=", ""));
+                    fragment = value.isEmpty() ? fragment : HASHBANG + value;
+                } else if (ignoredParameters == null || !ignoredParameters.matches(name)) {
+                    parameters.add(parameter);
+                }
+            }
+        }
+        Collections.sort(parameters, BY_NAME);
+
+        final StringBuilder canonical = new StringBuilder(url.length());
+        canonical.append(scheme).append("://").append(normalizeAuthority(scheme, authority)).append(normalizePath(path));
+        for (int i = 0; i < parameters.size(); i++) {
+            canonical.append(i == 0 ? '?' : '&').append(parameters.get(i));
+        }
+        return canonical.append(fragment).toString();
+    }
+
+    private static String normalizeAuthority(String scheme, String authority) {
+        final int userInfoEnd = authority.lastIndexOf('@');
+        final String userInfo = authority.substring(0, userInfoEnd + 1);
+        String host = authority.substring(userInfoEnd + 1).toLowerCase(Locale.ENGLISH);
+        if (("http".equals(scheme) && host.endsWith(":80")) || ("https".equals(scheme) && host.endsWith(":443"))) {
+            host = host.substring(0, host.lastIndexOf(':'));
+        }
+        return userInfo + host;
+    }
+
+    private String normalizePath(String path) {
+        final StringBuilder normalized = new StringBuilder(path.length() + 1);
+        for (int i = 0; i < path.length(); i++) {
+            final char c = path.charAt(i);
+            if (c == '%' && i + 2 < path.length()) {
+                normalized.append(c).append(Character.toUpperCase(path.charAt(i + 1)))
+                        .append(Character.toUpperCase(path.charAt(i + 2)));
+                i += 2;
+            } else {
+                normalized.append(c);
+            }
+        }
+        while (stripTrailingSlash && normalized.length() > 1 && normalized.charAt(normalized.length() - 1) == '/') {
+            normalized.setLength(normalized.length() - 1);
+        }
+        return normalized.length() == 0 ? "/" : normalized.toString();
+    }
+
+    private static String getName(String parameter) {
+        final int equals = parameter.indexOf('=');
+        return equals >= 0 ? parameter.substring(0, equals) : parameter;
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } catch (IllegalArgumentException e) {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.github.greengerong;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable set of url regexes, compiled once. An input matches the set when it fully matches any of the regexes.
+ * <p/>
+ * The regexes are merged into a single alternation so an input is classified in one pass, unless one of them
+ * relies on group numbers or names, which the merge would shift.
+ */
+public class UrlPatternSet {
+    private static final Pattern GROUP_REFERENCE = Pattern.compile("\\\\[1-9]|\\\\k<|\\(\\?<[a-zA-Z]");
+    private final List<Pattern> patterns;
+    private final Pattern combined;
+
+    public UrlPatternSet(Collection<String> regexes) {
+        final ImmutableList.Builder<Pattern> builder = ImmutableList.builder();
+        boolean combinable = true;
+        for (String regex : regexes) {
+            builder.add(Pattern.compile(regex));
+            combinable &= !GROUP_REFERENCE.matcher(regex).find();
+        }
+        this.patterns = builder.build();
+        this.combined = combinable && patterns.size() > 1 ? combine(regexes) : null;
+    }
+
+    public boolean matches(CharSequence input) {
+        if (combined != null) {
+            return combined.matcher(input).matches();
+        }
+        for (Pattern pattern : patterns) {
+            if (pattern.matcher(input).matches()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public List<Pattern> getPatterns() {
+        return patterns;
+    }
+
+    private static Pattern combine(Collection<String> regexes) {
+        return Pattern.compile("(?:" + Joiner.on(")|(?:").join(regexes) + ")");
+    }
+}
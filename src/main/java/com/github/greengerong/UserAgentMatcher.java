@@ -0,0 +1,144 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Case insensitive "contains any of" matcher for User-Agent strings.
+ * <p/>
+ * The keywords are compiled once into an Aho-Corasick automaton with a full transition table, so a User-Agent
+ * is tested in a single pass over its characters without allocating.
+ */
+public class UserAgentMatcher {
+    private static final int ASCII_SIZE = 128;
+    private static final int ROOT = 0;
+    private final int[] asciiClasses = new int[ASCII_SIZE];
+    private final char[] otherChars;
+    private final int[] otherClasses;
+    private final int[][] transitions;
+    private final boolean[] accepting;
+
+    public UserAgentMatcher(Collection<String> keywords) {
+        final char[] alphabet = alphabetOf(keywords);
+        final List<Character> others = Lists.newArrayList();
+        for (int i = 0; i < alphabet.length; i++) {
+            if (alphabet[i] < ASCII_SIZE) {
+                asciiClasses[alphabet[i]] = i + 1;
+            } else {
+                others.add(alphabet[i]);
+            }
+        }
+        otherChars = new char[others.size()];
+        otherClasses = new int[others.size()];
+        for (int i = 0; i < others.size(); i++) {
+            otherChars[i] = others.get(i);
+            otherClasses[i] = Arrays.binarySearch(alphabet, otherChars[i]) + 1;
+        }
+
+        final List<int[]> trie = Lists.newArrayList();
+        final List<Boolean> terminals = Lists.newArrayList();
+        trie.add(newState(alphabet.length + 1));
+        terminals.add(false);
+        for (String keyword : keywords) {
+            if (keyword == null || keyword.isEmpty()) {
+                continue;
+            }
+            int state = ROOT;
+            for (int i = 0; i < keyword.length(); i++) {
+                final int charClass = classOf(Character.toLowerCase(keyword.charAt(i)));
+                if (trie.get(state)[charClass] < 0) {
+                    trie.get(state)[charClass] = trie.size();
+                    trie.add(newState(alphabet.length + 1));
+                    terminals.add(false);
+                }
+                state = trie.get(state)[charClass];
+            }
+            terminals.set(state, true);
+        }
+
+        transitions = trie.toArray(new int[trie.size()][]);
+        accepting = new boolean[trie.size()];
+        for (int i = 0; i < accepting.length; i++) {
+            accepting[i] = terminals.get(i);
+        }
+        buildFailureTransitions();
+    }
+
+    public boolean matches(CharSequence userAgent) {
+        int state = ROOT;
+        for (int i = 0; i < userAgent.length(); i++) {
+            state = transitions[state][classOf(Character.toLowerCase(userAgent.charAt(i)))];
+            if (accepting[state]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Turn the keyword trie into a complete automaton: every missing edge points to where the failure link
+     * would lead, and a state accepts if any keyword ends at it or at one of its suffixes.
+     */
+    private void buildFailureTransitions() {
+        final int[] failure = new int[transitions.length];
+        final LinkedList<Integer> queue = new LinkedList<Integer>();
+        for (int charClass = 0; charClass < transitions[ROOT].length; charClass++) {
+            final int child = transitions[ROOT][charClass];
+            if (child < 0) {
+                transitions[ROOT][charClass] = ROOT;
+            } else {
+                failure[child] = ROOT;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.removeFirst();
+            accepting[state] |= accepting[failure[state]];
+            for (int charClass = 0; charClass < transitions[state].length; charClass++) {
+                final int child = transitions[state][charClass];
+                if (child < 0) {
+                    transitions[state][charClass] = transitions[failure[state]][charClass];
+                } else {
+                    failure[child] = transitions[failure[state]][charClass];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private int classOf(char c) {
+        if (c < ASCII_SIZE) {
+            return asciiClasses[c];
+        }
+        final int index = Arrays.binarySearch(otherChars, c);
+        return index >= 0 ? otherClasses[index] : 0;
+    }
+
+    private static int[] newState(int size) {
+        final int[] state = new int[size];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static char[] alphabetOf(Collection<String> keywords) {
+        final StringBuilder chars = new StringBuilder();
+        for (String keyword : keywords) {
+            if (keyword == null) {
+                continue;
+            }
+            for (int i = 0; i < keyword.length(); i++) {
+                final char c = Character.toLowerCase(keyword.charAt(i));
+                if (chars.indexOf(String.valueOf(c)) < 0) {
+                    chars.append(c);
+                }
+            }
+        }
+        final char[] alphabet = chars.toString().toCharArray();
+        Arrays.sort(alphabet);
+        return alphabet;
+    }
+}
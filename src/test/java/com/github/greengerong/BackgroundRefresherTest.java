@@ -0,0 +1,79 @@
+package com.github.greengerong;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class BackgroundRefresherTest {
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BackgroundRefresher refresher;
+
+    @After
+    public void tearDown() throws Exception {
+        release.countDown();
+        refresher.shutdown();
+    }
+
+    @Test
+    public void should_not_schedule_key_that_is_already_refreshing() throws Exception {
+        //given
+        refresher = new BackgroundRefresher(2, 10);
+        refresher.refresh("http://localhost/test", blocking());
+        //when
+        final boolean scheduled = refresher.refresh("http://localhost/test", blocking());
+        //then
+        assertThat(scheduled, is(false));
+        assertThat(refresher.refresh("http://localhost/other", blocking()), is(true));
+        assertThat(refresher.getInFlightCount(), is(2));
+    }
+
+    @Test
+    public void should_reject_refresh_when_queue_is_full() throws Exception {
+        //given
+        refresher = new BackgroundRefresher(1, 1);
+        refresher.refresh("http://localhost/a", blocking());
+        refresher.refresh("http://localhost/b", blocking());
+        //when
+        final boolean scheduled = refresher.refresh("http://localhost/c", blocking());
+        //then
+        assertThat(scheduled, is(false));
+        assertThat(refresher.getInFlightCount(), is(2));
+    }
+
+    @Test
+    public void should_allow_key_again_once_refresh_is_done() throws Exception {
+        //given
+        refresher = new BackgroundRefresher(1, 1);
+        final CountDownLatch done = new CountDownLatch(1);
+        refresher.refresh("http://localhost/test", new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                done.countDown();
+                throw new IllegalStateException("prerender is down");
+            }
+        });
+        done.await(5, TimeUnit.SECONDS);
+        //when
+        while (refresher.getInFlightCount() > 0) {
+            Thread.sleep(5);
+        }
+        //then
+        assertThat(refresher.refresh("http://localhost/test", blocking()), is(true));
+    }
+
+    private Callable<Object> blocking() {
+        return new Callable<Object>() {
+            @Override
+            public Object call() throws Exception {
+                release.await();
+                return null;
+            }
+        };
+    }
+}
@@ -0,0 +1,114 @@
+package com.github.greengerong;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class CacheWarmerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Mock
+    private PrerenderSeoService prerenderSeoService;
+
+    @Mock
+    private CloseableHttpClient httpClient;
+
+    @Test
+    public void should_read_urls_from_sitemap() throws Exception {
+        //given
+        final File sitemap = write("sitemap.xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">\n"
+                + "  <url><loc>http://localhost/a</loc><changefreq>daily</changefreq></url>\n"
+                + "  <url><loc> http://localhost/b </loc></url>\n"
+                + "</urlset>");
+        //when
+        final List<String> urls = warmer().readUrls(sitemap.getPath());
+        //then
+        assertThat(urls, is((List<String>) Lists.newArrayList("http://localhost/a", "http://localhost/b")));
+    }
+
+    @Test
+    public void should_follow_sitemap_index_to_gzipped_sitemaps() throws Exception {
+        //given
+        final File sitemap = folder.newFile("products.xml.gz");
+        final GZIPOutputStream output = new GZIPOutputStream(new FileOutputStream(sitemap));
+        output.write(("<urlset xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">"
+                + "<url><loc>http://localhost/products/1</loc></url></urlset>").getBytes(Charsets.UTF_8));
+        output.close();
+        final File index = write("index.xml", "<sitemapindex xmlns=\"http://www.sitemaps.org/schemas/sitemap/0.9\">"
+                + "<sitemap><loc>" + sitemap.getPath() + "</loc></sitemap></sitemapindex>");
+        //when
+        final List<String> urls = warmer().readUrls(index.getPath());
+        //then
+        assertThat(urls, is((List<String>) Lists.newArrayList("http://localhost/products/1")));
+    }
+
+    @Test(expected = IOException.class)
+    public void should_reject_sitemap_with_doctype() throws Exception {
+        //given
+        final File sitemap = write("sitemap.xml", "<?xml version=\"1.0\"?>\n"
+                + "<!DOCTYPE urlset [<!ENTITY secret SYSTEM \"file:///etc/passwd\">]>\n"
+                + "<urlset><url><loc>&secret;</loc></url></urlset>");
+        //when
+        warmer().readUrls(sitemap.getPath());
+    }
+
+    @Test
+    public void should_read_urls_from_url_list() throws Exception {
+        //given
+        final File list = write("urls.txt", "# landing pages\nhttp://localhost/a\n\n  http://localhost/b\r\n");
+        //when
+        final List<String> urls = warmer().readUrls(list.getPath());
+        //then
+        assertThat(urls, is((List<String>) Lists.newArrayList("http://localhost/a", "http://localhost/b")));
+    }
+
+    @Test
+    public void should_recache_urls_not_cached_yet() throws Exception {
+        //given
+        final CacheWarmer warmer = warmer();
+        when(prerenderSeoService.isCached("http://localhost/cached")).thenReturn(true);
+        when(prerenderSeoService.recache("http://localhost/a")).thenReturn(true);
+        when(prerenderSeoService.recache("http://localhost/b")).thenThrow(new IOException("timeout"));
+        //when
+        warmer.warm(Lists.newArrayList("http://localhost/a", "http://localhost/cached", "http://localhost/b"));
+        //then
+        verify(prerenderSeoService, never()).recache("http://localhost/cached");
+        assertThat(warmer.getRenderedCount(), is(1L));
+        assertThat(warmer.getSkippedCount(), is(1L));
+        assertThat(warmer.getFailedCount(), is(1L));
+        warmer.shutdown();
+    }
+
+    private CacheWarmer warmer() {
+        return new CacheWarmer(prerenderSeoService, httpClient, Lists.<String>newArrayList(), 1000, 2, 0);
+    }
+
+    private File write(String name, String content) throws IOException {
+        final File file = folder.newFile(name);
+        Files.write(content, file, Charsets.UTF_8);
+        return file;
+    }
+}
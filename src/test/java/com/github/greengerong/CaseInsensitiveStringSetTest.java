@@ -0,0 +1,41 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CaseInsensitiveStringSetTest {
+
+    @Test
+    public void should_contain_values_ignoring_case() throws Exception {
+        //given
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(Arrays.asList(".js", ".CSS", "Keep-Alive"));
+        //then
+        assertThat(set.contains(".JS"), is(true));
+        assertThat(set.contains(".css"), is(true));
+        assertThat(set.contains("keep-alive"), is(true));
+        assertThat(set.contains(".json"), is(false));
+        assertThat(set.contains(null), is(false));
+    }
+
+    @Test
+    public void should_test_region_of_value() throws Exception {
+        //given
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(Arrays.asList(".js", ".tar.gz"));
+        //then
+        assertThat(set.contains("http://localhost/app.JS?v=1", 20, 23), is(true));
+        assertThat(set.contains("http://localhost/app.tar.gz", 20, 27), is(true));
+        assertThat(set.contains("http://localhost/app.jsx", 20, 24), is(false));
+    }
+
+    @Test
+    public void should_ignore_duplicates() throws Exception {
+        //given
+        CaseInsensitiveStringSet set = new CaseInsensitiveStringSet(Arrays.asList(".doc", ".DOC", ".doc", ".pdf"));
+        //then
+        assertThat(set.size(), is(2));
+    }
+}
@@ -0,0 +1,156 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static com.github.greengerong.CircuitBreaker.State.CLOSED;
+import static com.github.greengerong.CircuitBreaker.State.HALF_OPEN;
+import static com.github.greengerong.CircuitBreaker.State.OPEN;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class CircuitBreakerTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(5);
+    private FakeTicker ticker;
+    private CircuitBreaker circuitBreaker;
+
+    @Before
+    public void setUp() throws Exception {
+        ticker = new FakeTicker();
+        circuitBreaker = new CircuitBreaker("prerender", 10, 4, 50, 80, 1000, 30000, 2, ticker);
+    }
+
+    @Test
+    public void should_stay_closed_below_minimum_calls() throws Exception {
+        //given
+        call(false, FAST);
+        call(false, FAST);
+        call(false, FAST);
+        //when
+        final boolean permitted = circuitBreaker.tryAcquire();
+        //then
+        assertThat(permitted, is(true));
+        assertThat(circuitBreaker.getState(), is(CLOSED));
+    }
+
+    @Test
+    public void should_open_when_failure_rate_reaches_threshold() throws Exception {
+        //given
+        call(true, FAST);
+        call(true, FAST);
+        call(false, FAST);
+        //when
+        call(false, FAST);
+        //then
+        assertThat(circuitBreaker.getState(), is(OPEN));
+        assertThat(circuitBreaker.tryAcquire(), is(false));
+        assertThat(circuitBreaker.getNotPermittedCount(), is(1L));
+    }
+
+    @Test
+    public void should_open_when_slow_call_rate_reaches_threshold() throws Exception {
+        //given
+        circuitBreaker = new CircuitBreaker("prerender", 10, 4, 100, 80, 1000, 30000, 2, ticker);
+        call(false, SLOW);
+        call(false, SLOW);
+        call(false, SLOW);
+        call(false, FAST);
+        assertThat(circuitBreaker.getState(), is(CLOSED));
+        //when
+        call(false, SLOW);
+        //then
+        assertThat(circuitBreaker.getState(), is(OPEN));
+        assertThat(circuitBreaker.getSlowCallRate(), is(80f));
+    }
+
+    @Test
+    public void should_slide_old_failures_out_of_window() throws Exception {
+        //given
+        circuitBreaker = new CircuitBreaker("prerender", 4, 4, 50, 100, 1000, 30000, 2, ticker);
+        call(true, FAST);
+        call(false, FAST);
+        call(false, FAST);
+        call(false, FAST);
+        //when
+        call(false, FAST);
+        //then
+        assertThat(circuitBreaker.getState(), is(CLOSED));
+        assertThat(circuitBreaker.getFailureRate(), is(0f));
+    }
+
+    @Test
+    public void should_let_probes_through_half_open_and_close_when_they_succeed() throws Exception {
+        //given
+        openCircuit();
+        ticker.advance(30000);
+        //when
+        final boolean firstProbe = circuitBreaker.tryAcquire();
+        final boolean secondProbe = circuitBreaker.tryAcquire();
+        final boolean thirdCall = circuitBreaker.tryAcquire();
+        //then
+        assertThat(firstProbe, is(true));
+        assertThat(secondProbe, is(true));
+        assertThat(thirdCall, is(false));
+        assertThat(circuitBreaker.getState(), is(HALF_OPEN));
+        circuitBreaker.onResult(FAST, true);
+        circuitBreaker.onResult(FAST, true);
+        assertThat(circuitBreaker.getState(), is(CLOSED));
+        assertThat(circuitBreaker.tryAcquire(), is(true));
+    }
+
+    @Test
+    public void should_open_again_when_probe_fails() throws Exception {
+        //given
+        openCircuit();
+        ticker.advance(30000);
+        circuitBreaker.tryAcquire();
+        //when
+        circuitBreaker.onResult(FAST, false);
+        //then
+        assertThat(circuitBreaker.getState(), is(OPEN));
+        assertThat(circuitBreaker.tryAcquire(), is(false));
+    }
+
+    @Test
+    public void should_give_back_probe_that_was_not_made() throws Exception {
+        //given
+        openCircuit();
+        ticker.advance(30000);
+        circuitBreaker.tryAcquire();
+        circuitBreaker.tryAcquire();
+        //when
+        circuitBreaker.release();
+        //then
+        assertThat(circuitBreaker.tryAcquire(), is(true));
+    }
+
+    private void openCircuit() {
+        for (int i = 0; i < 4; i++) {
+            call(true, FAST);
+        }
+        assertThat(circuitBreaker.getState(), is(OPEN));
+    }
+
+    private void call(boolean failed, long latencyNanos) {
+        if (circuitBreaker.tryAcquire()) {
+            circuitBreaker.onResult(latencyNanos, !failed);
+        }
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class ConcurrencyLimiterTest {
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long SLOW = TimeUnit.SECONDS.toNanos(10);
+
+    @Test
+    public void should_reject_when_limit_and_queue_are_full() throws Exception {
+        //given
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 0, 1000, 1000);
+        limiter.acquire();
+        limiter.acquire();
+        //when
+        final boolean acquired = limiter.acquire();
+        //then
+        assertThat(acquired, is(false));
+        assertThat(limiter.tryAcquire(), is(false));
+        assertThat(limiter.getRejectedCount(), is(2L));
+        assertThat(limiter.getInFlight(), is(2));
+    }
+
+    @Test
+    public void should_give_released_permit_to_queued_caller() throws Exception {
+        //given
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10, 1, 5000, 1000);
+        limiter.acquire();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Boolean> queued = executor.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return limiter.acquire();
+                }
+            });
+            while (limiter.getWaiting() == 0) {
+                Thread.sleep(5);
+            }
+            //when
+            limiter.release(FAST, true);
+            //then
+            assertThat(queued.get(5, TimeUnit.SECONDS), is(true));
+            assertThat(limiter.getInFlight(), is(1));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void should_time_out_queued_caller() throws Exception {
+        //given
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10, 1, 20, 1000);
+        limiter.acquire();
+        //when
+        final boolean acquired = limiter.acquire();
+        //then
+        assertThat(acquired, is(false));
+        assertThat(limiter.getWaiting(), is(0));
+    }
+
+    @Test
+    public void should_increase_limit_additively_when_saturated_calls_are_fast() throws Exception {
+        //given
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 10, 0, 1000, 1000);
+        //when
+        for (int i = 0; i < 10; i++) {
+            while (limiter.tryAcquire()) {
+            }
+            final int inFlight = limiter.getInFlight();
+            for (int j = 0; j < inFlight; j++) {
+                limiter.release(FAST, true);
+            }
+        }
+        //then
+        assertThat(limiter.getLimit() > 2, is(true));
+        assertThat(limiter.getLimit() <= 10, is(true));
+    }
+
+    @Test
+    public void should_decrease_limit_multiplicatively_when_calls_are_slow_or_fail() throws Exception {
+        //given
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 2, 10, 0, 1000, 1000);
+        //when
+        for (int i = 0; i < 5; i++) {
+            limiter.acquire();
+            limiter.release(SLOW, true);
+            limiter.acquire();
+            limiter.release(FAST, false);
+        }
+        //then
+        assertThat(limiter.getLimit(), is(3));
+        for (int i = 0; i < 20; i++) {
+            limiter.acquire();
+            limiter.release(FAST, false);
+        }
+        assertThat(limiter.getLimit(), is(2));
+    }
+}
@@ -0,0 +1,164 @@
+package com.github.greengerong;
+
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.util.EntityUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class DiskPageStoreTest {
+    private static final long HOUR = 60L * 60 * 1000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private DiskPageStore store;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = folder.newFolder("pages");
+        store = new DiskPageStore(directory, 64 * 1024, 4, 1000, HOUR, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        store.close();
+    }
+
+    @Test
+    public void should_read_back_written_page() throws Exception {
+        //given
+        store.write("http://localhost/test", page("<html>test</html>"));
+        //when
+        final PrerenderedPage page = store.get("http://localhost/test");
+        //then
+        assertThat(page.getStatusCode(), is(200));
+        assertThat(page.getContentEncoding(), is(PrerenderedPage.GZIP));
+        assertThat(page.getHeaders()[0].getValue(), is("text/html; charset=UTF-8"));
+        assertThat(body(page), is("<html>test</html>"));
+        assertThat(store.get("http://localhost/other"), is(nullValue()));
+    }
+
+    @Test
+    public void should_keep_pages_across_restart() throws Exception {
+        //given
+        store.write("http://localhost/a", page("<html>a</html>"));
+        store.write("http://localhost/b", page("<html>b</html>"));
+        store.write("http://localhost/a", page("<html>a2</html>"));
+        store.remove("http://localhost/b");
+        store.close();
+        //when
+        store = new DiskPageStore(directory, 64 * 1024, 4, 1000, HOUR, 0);
+        //then
+        assertThat(store.size(), is(1));
+        assertThat(body(store.get("http://localhost/a")), is("<html>a2</html>"));
+        assertThat(store.get("http://localhost/b"), is(nullValue()));
+    }
+
+    @Test
+    public void should_remove_page_before_returning() throws Exception {
+        //given
+        store.write("http://localhost/test", page("<html>test</html>"));
+        //when
+        store.remove("http://localhost/test");
+        //then
+        assertThat(store.get("http://localhost/test"), is(nullValue()));
+        assertThat(store.size(), is(0));
+    }
+
+    @Test
+    public void should_remove_pages_by_url_prefix_across_restart() throws Exception {
+        //given
+        store.write("http://localhost/products/1", page("<html>1</html>"));
+        store.write("http://localhost/products/2", page("<html>2</html>"));
+        store.write("http://localhost/about", page("<html>about</html>"));
+        //when
+        final int removed = store.removePrefix("http://localhost/products/");
+        store.close();
+        store = new DiskPageStore(directory, 64 * 1024, 4, 1000, HOUR, 0);
+        //then
+        assertThat(removed, is(2));
+        assertThat(store.size(), is(1));
+        assertThat(store.get("http://localhost/products/1"), is(nullValue()));
+        assertThat(body(store.get("http://localhost/about")), is("<html>about</html>"));
+    }
+
+    @Test
+    public void should_not_return_expired_page() throws Exception {
+        //given
+        store.close();
+        store = new DiskPageStore(directory, 64 * 1024, 4, 1000, 1, 0);
+        store.write("http://localhost/test", page("<html>test</html>"));
+        //when
+        Thread.sleep(5);
+        //then
+        assertThat(store.get("http://localhost/test"), is(nullValue()));
+    }
+
+    @Test
+    public void should_compact_segments_with_dead_records() throws Exception {
+        //given
+        store.close();
+        directory = folder.newFolder("small");
+        store = new DiskPageStore(directory, 2048, 100, 1000, HOUR, 0);
+        for (int i = 0; i < 100; i++) {
+            store.write("http://localhost/test", page("<html>" + i + "</html>"));
+        }
+        store.write("http://localhost/other", page("<html>other</html>"));
+        final int segments = store.getSegmentCount();
+        //when
+        store.compact();
+        //then
+        assertThat(store.getSegmentCount() < segments, is(true));
+        assertThat(body(store.get("http://localhost/test")), is("<html>99</html>"));
+        assertThat(body(store.get("http://localhost/other")), is("<html>other</html>"));
+        assertThat(directory.listFiles().length, is(store.getSegmentCount()));
+    }
+
+    @Test
+    public void should_keep_removed_page_gone_after_compaction_and_restart() throws Exception {
+        //given
+        store.close();
+        directory = folder.newFolder("small");
+        store = new DiskPageStore(directory, 2048, 100, 1000, HOUR, 0);
+        store.write("http://localhost/removed", page("<html>removed</html>"));
+        for (int i = 0; store.getSegmentCount() < 2; i++) {
+            store.write("http://localhost/keep/" + i, page("<html>" + i + "</html>"));
+        }
+        store.remove("http://localhost/removed");
+        for (int i = 0; store.getSegmentCount() < 3; i++) {
+            store.write("http://localhost/churn", page("<html>" + i + "</html>"));
+        }
+        //when
+        store.compact();
+        store.close();
+        store = new DiskPageStore(directory, 2048, 100, 1000, HOUR, 0);
+        //then
+        assertThat(store.get("http://localhost/removed"), is(nullValue()));
+        assertThat(body(store.get("http://localhost/keep/0")), is("<html>0</html>"));
+        assertThat(store.get("http://localhost/churn"), is(notNullValue()));
+    }
+
+    private PrerenderedPage page(String html) throws Exception {
+        return new PrerenderedPage(200, new Header[]{new BasicHeader("Content-Type", "text/html; charset=UTF-8")},
+                html.getBytes("UTF-8"), System.currentTimeMillis());
+    }
+
+    private String body(PrerenderedPage page) throws Exception {
+        assertThat(page, is(notNullValue()));
+        final HttpResponse response = page.toHttpResponse();
+        return EntityUtils.toString(response.getEntity());
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+import org.apache.http.Header;
+import org.apache.http.HttpVersion;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(MockitoJUnitRunner.class)
+public class HeaderForwarderTest {
+
+    @Mock
+    private HttpServletRequest servletRequest;
+
+    @Mock
+    private HttpServletResponse servletResponse;
+
+    @Test
+    public void should_copy_request_headers_except_hop_by_hop_and_blacklisted_ones() throws Exception {
+        //given
+        final HeaderForwarder forwarder = new HeaderForwarder(null, Lists.newArrayList("cookie"));
+        givenRequestHeaders("Host", "User-Agent", "Connection", "Content-Length", "Cookie", "Accept");
+        when(servletRequest.getHeaders("Accept")).thenReturn(Collections.enumeration(
+                Lists.newArrayList("text/html", "application/xhtml+xml")));
+        final HttpGet proxyRequest = new HttpGet("http://prerender/http://localhost/");
+        //when
+        forwarder.copyRequestHeaders(servletRequest, proxyRequest, "prerender:3000");
+        //then
+        assertThat(proxyRequest.getFirstHeader("Host").getValue(), is("prerender:3000"));
+        assertThat(proxyRequest.getFirstHeader("User-Agent").getValue(), is("User-Agent value"));
+        assertThat(proxyRequest.getHeaders("Accept").length, is(2));
+        assertThat(proxyRequest.containsHeader("Connection"), is(false));
+        assertThat(proxyRequest.containsHeader("Content-Length"), is(false));
+        assertThat(proxyRequest.containsHeader("Cookie"), is(false));
+    }
+
+    @Test
+    public void should_copy_only_whitelisted_request_headers() throws Exception {
+        //given
+        final HeaderForwarder forwarder = new HeaderForwarder(Lists.newArrayList("user-agent", "HOST"), null);
+        givenRequestHeaders("Host", "User-Agent", "Referer");
+        final HttpGet proxyRequest = new HttpGet("http://prerender/http://localhost/");
+        //when
+        forwarder.copyRequestHeaders(servletRequest, proxyRequest, "prerender");
+        //then
+        assertThat(proxyRequest.getAllHeaders().length, is(2));
+        assertThat(proxyRequest.containsHeader("Referer"), is(false));
+    }
+
+    @Test
+    public void should_copy_response_headers_except_hop_by_hop_ones() throws Exception {
+        //given
+        final HeaderForwarder forwarder = new HeaderForwarder(null, null);
+        final BasicHttpResponse proxyResponse = new BasicHttpResponse(HttpVersion.HTTP_1_1, 200, "OK");
+        proxyResponse.addHeader("Content-Type", "text/html");
+        proxyResponse.addHeader("transfer-encoding", "chunked");
+        proxyResponse.addHeader("ETag", "\"1\"");
+        //when
+        forwarder.copyResponseHeaders(proxyResponse, servletResponse);
+        final Header[] headers = forwarder.getForwardedResponseHeaders(proxyResponse);
+        //then
+        verify(servletResponse).addHeader("Content-Type", "text/html");
+        verify(servletResponse).addHeader("ETag", "\"1\"");
+        verify(servletResponse, never()).addHeader("transfer-encoding", "chunked");
+        assertThat(headers.length, is(2));
+        assertThat(headers[1].getName(), is("ETag"));
+    }
+
+    @Test
+    public void should_share_response_headers_except_per_client_ones() throws Exception {
+        //given
+        final HeaderForwarder forwarder = new HeaderForwarder(null, null);
+        final Header[] headers = new Header[]{new BasicHeader("Content-Type", "text/html"),
+                new BasicHeader("set-cookie", "session=1"), new BasicHeader("ETag", "\"1\"")};
+        //when
+        final Header[] shared = forwarder.getSharedResponseHeaders(headers);
+        //then
+        assertThat(shared.length, is(2));
+        assertThat(shared[0].getName(), is("Content-Type"));
+        assertThat(shared[1].getName(), is("ETag"));
+    }
+
+    private void givenRequestHeaders(String... names) {
+        when(servletRequest.getHeaderNames()).thenReturn(Collections.enumeration(Lists.newArrayList(names)));
+        for (String name : names) {
+            when(servletRequest.getHeaders(name)).thenReturn(Collections.enumeration(
+                    Lists.newArrayList(name + " value")));
+        }
+    }
+}
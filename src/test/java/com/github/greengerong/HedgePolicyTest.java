@@ -0,0 +1,52 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class HedgePolicyTest {
+
+    @Test
+    public void should_use_min_delay_until_enough_latencies_are_recorded() throws Exception {
+        //given
+        final HedgePolicy policy = new HedgePolicy(90, 50, 5);
+        //when
+        for (int i = 0; i < 10; i++) {
+            policy.recordLatency(TimeUnit.SECONDS.toNanos(5));
+        }
+        //then
+        assertThat(policy.getDelayNanos(), is(TimeUnit.MILLISECONDS.toNanos(50)));
+    }
+
+    @Test
+    public void should_hedge_after_configured_percentile_of_recorded_latencies() throws Exception {
+        //given
+        final HedgePolicy policy = new HedgePolicy(90, 50, 5);
+        //when
+        for (int i = 1; i <= 128; i++) {
+            policy.recordLatency(TimeUnit.MILLISECONDS.toNanos(i * 10));
+        }
+        //then
+        assertThat(policy.getDelayNanos(), is(TimeUnit.MILLISECONDS.toNanos(1160)));
+    }
+
+    @Test
+    public void should_not_hedge_more_than_budget_percent_of_calls() throws Exception {
+        //given
+        final HedgePolicy policy = new HedgePolicy(90, 50, 5);
+        int hedges = 0;
+        //when
+        for (int i = 0; i < 200; i++) {
+            policy.onCall();
+            if (policy.tryHedge()) {
+                hedges++;
+            }
+        }
+        //then
+        assertThat(hedges, is(10));
+        assertThat(policy.getHedgedCount(), is(10L));
+    }
+}
@@ -0,0 +1,84 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class HtmlTokenWriterTest {
+    private static final String HTML = "<!DOCTYPE html><html><head><title>a < b</title>"
+            + "<script type=\"text/javascript\">if (a <b && c </d) { x = '</scrip'; }</script>"
+            + "<!-- a <b> comment --></head><body class=\"x>y\" data-x='1'>Hi<br/>there</body></html>";
+
+    @Test
+    public void should_split_html_into_tokens_whatever_the_chunk_size() throws Exception {
+        //given
+        final String expected = "[<!DOCTYPE html>][<html>][<head>][<title>]a < b[</title>]"
+                + "[<script type=\"text/javascript\">]{if (a <b && c </d) { x = '</scrip'; }}[</script>]"
+                + "[<!-- a <b> comment -->][</head>][<body class=\"x>y\" data-x='1'>]Hi[<br/>]there[</body>][</html>]";
+        //when
+        final String whole = tokenize(HTML, HTML.length());
+        final String byChar = tokenize(HTML, 1);
+        final String byThree = tokenize(HTML, 3);
+        //then
+        assertThat(whole, is(expected));
+        assertThat(byChar, is(expected));
+        assertThat(byThree, is(expected));
+    }
+
+    @Test
+    public void should_hand_on_unfinished_markup_as_text_on_close() throws Exception {
+        assertThat(tokenize("text <a href=\"x", 4), is("text <a href=\"x"));
+        assertThat(tokenize("<<p>", 1), is("<[<p>]"));
+    }
+
+    @Test
+    public void should_read_tag_names_and_attributes() throws Exception {
+        assertThat(HtmlTokenWriter.getTagName("<SCRIPT type=x>"), is("script"));
+        assertThat(HtmlTokenWriter.getTagName("</Body >"), is("body"));
+        assertThat(HtmlTokenWriter.getTagName("<!-- x -->"), is(nullValue()));
+        assertThat(HtmlTokenWriter.getAttribute("<script TYPE='application/ld+json' async>", "type"),
+                is("application/ld+json"));
+        assertThat(HtmlTokenWriter.getAttribute("<script TYPE='application/ld+json' async>", "async"), is(""));
+        assertThat(HtmlTokenWriter.getAttribute("<link rel=canonical href=/a/>", "href"), is("/a/"));
+        assertThat(HtmlTokenWriter.getAttribute("<script src=a.js>", "type"), is(nullValue()));
+    }
+
+    private static String tokenize(String html, int chunkSize) throws IOException {
+        final StringWriter output = new StringWriter();
+        final Writer writer = new MarkingWriter(output);
+        for (int i = 0; i < html.length(); i += chunkSize) {
+            writer.write(html, i, Math.min(chunkSize, html.length() - i));
+        }
+        writer.close();
+        return output.toString().replace("}{", "");
+    }
+
+    /**
+     * Brackets markup and braces raw text, so the token boundaries show in the output.
+     */
+    private static class MarkingWriter extends HtmlTokenWriter {
+        MarkingWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        protected void rawText(char[] chars, int offset, int length) throws IOException {
+            if (length > 0) {
+                out.write('{');
+                out.write(chars, offset, length);
+                out.write('}');
+            }
+        }
+
+        @Override
+        protected void markup(String markup) throws IOException {
+            out.write("[" + markup + "]");
+        }
+    }
+}
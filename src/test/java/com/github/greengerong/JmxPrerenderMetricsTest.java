@@ -0,0 +1,84 @@
+package com.github.greengerong;
+
+import com.google.common.base.Supplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.management.MBeanServer;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class JmxPrerenderMetricsTest {
+    private final MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+    private JmxPrerenderMetrics metrics;
+
+    @Before
+    public void setUp() {
+        metrics = new JmxPrerenderMetrics("test", mBeanServer);
+    }
+
+    @After
+    public void tearDown() {
+        metrics.close();
+    }
+
+    @Test
+    public void should_publish_tagged_counters_as_mbean_attributes() throws Exception {
+        //given
+        metrics.count("decisions", "crawler", 1);
+        metrics.count("decisions", "crawler", 2);
+        metrics.count("bytesProxied", null, 1024);
+        //when
+        final Object crawler = mBeanServer.getAttribute(metrics.getObjectName(), "decisions.crawler");
+        final Object bytes = mBeanServer.getAttribute(metrics.getObjectName(), "bytesProxied");
+        //then
+        assertThat(crawler, is((Object) 3L));
+        assertThat(bytes, is((Object) 1024L));
+    }
+
+    @Test
+    public void should_publish_timer_count_max_and_percentiles() throws Exception {
+        //given
+        for (int i = 0; i < 99; i++) {
+            metrics.time("upstream", "200", TimeUnit.MILLISECONDS.toNanos(3));
+        }
+        metrics.time("upstream", "200", TimeUnit.MILLISECONDS.toNanos(5000));
+        //when
+        final Object count = mBeanServer.getAttribute(metrics.getObjectName(), "upstream.200.count");
+        final Object p50 = mBeanServer.getAttribute(metrics.getObjectName(), "upstream.200.p50Millis");
+        final Object max = mBeanServer.getAttribute(metrics.getObjectName(), "upstream.200.maxMillis");
+        //then
+        assertThat(count, is((Object) 100L));
+        assertThat(p50, is((Object) 4d));
+        assertThat(max, is((Object) 5000d));
+    }
+
+    @Test
+    public void should_read_gauges_when_collected() throws Exception {
+        //given
+        final int[] leased = {1};
+        metrics.gauge("pool.leased", new Supplier<Integer>() {
+            @Override
+            public Integer get() {
+                return leased[0];
+            }
+        });
+        //when
+        leased[0] = 7;
+        //then
+        assertThat(mBeanServer.getAttribute(metrics.getObjectName(), "pool.leased"), is((Object) 7));
+        assertThat(metrics.getMBeanInfo().getAttributes().length, is(1));
+    }
+
+    @Test
+    public void should_unregister_mbean_when_closed() throws Exception {
+        //when
+        metrics.close();
+        //then
+        assertThat(mBeanServer.isRegistered(metrics.getObjectName()), is(false));
+    }
+}
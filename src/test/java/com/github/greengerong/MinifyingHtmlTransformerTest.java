@@ -0,0 +1,59 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+import org.mockito.runners.MockitoJUnitRunner;
+
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Mockito.verify;
+
+@RunWith(MockitoJUnitRunner.class)
+public class MinifyingHtmlTransformerTest {
+    private static final String HTML = "<html>\n  <head>\n    <!-- build 42 -->\n"
+            + "    <script src=\"app.js\"></script>\n"
+            + "    <script type=\"application/ld+json\">{\"@type\": \"Product\"}</script>\n"
+            + "    <SCRIPT>var a = '<b>';</SCRIPT>\n  </head>\n"
+            + "  <body>  Hello \t world  <pre>  keep\n  this </pre>  </body>\n</html>";
+
+    @Mock
+    private PrerenderMetrics metrics;
+
+    @Test
+    public void should_strip_scripts_comments_and_whitespace_but_keep_json_ld() throws Exception {
+        //given
+        final MinifyingHtmlTransformer transformer = new MinifyingHtmlTransformer(true, true, true, metrics);
+        //when
+        final String minified = transform(transformer, HTML, 5);
+        //then
+        assertThat(minified, is("<html>\n<head>\n"
+                + "<script type=\"application/ld+json\">{\"@type\": \"Product\"}</script>\n</head>\n"
+                + "<body> Hello world <pre>  keep\n  this </pre> </body>\n</html>"));
+        verify(metrics).count("minify", "input", HTML.length());
+        verify(metrics).count("minify", "removed", HTML.length() - minified.length());
+    }
+
+    @Test
+    public void should_only_run_configured_steps() throws Exception {
+        //given
+        final MinifyingHtmlTransformer transformer = new MinifyingHtmlTransformer(false, false, true, metrics);
+        //when
+        final String minified = transform(transformer, "<p>  a <!-- b --> <script>c()</script></p>", 1);
+        //then
+        assertThat(minified, is("<p>  a  <script>c()</script></p>"));
+    }
+
+    private static String transform(HtmlTransformer transformer, String html, int chunkSize) throws Exception {
+        final StringWriter output = new StringWriter();
+        final Writer writer = transformer.transform("http://localhost/", output);
+        for (int i = 0; i < html.length(); i += chunkSize) {
+            writer.write(html, i, Math.min(chunkSize, html.length() - i));
+        }
+        writer.close();
+        return output.toString();
+    }
+}
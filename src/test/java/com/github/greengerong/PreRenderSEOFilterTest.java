@@ -1,29 +1,56 @@
 package com.github.greengerong;
 
 import com.google.common.collect.Maps;
+import com.google.common.io.ByteStreams;
 import org.apache.http.Header;
 import org.apache.http.StatusLine;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.message.BasicHeader;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
 import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
 import org.mockito.runners.MockitoJUnitRunner;
+import org.mockito.stubbing.Answer;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
 import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 import static com.github.greengerong.PrerenderSeoService.ESCAPED_FRAGMENT_KEY;
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
 import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
 import static org.apache.http.HttpStatus.SC_OK;
 import static org.apache.http.client.methods.HttpGet.METHOD_NAME;
 import static org.mockito.Mockito.*;
@@ -31,11 +58,22 @@ import static org.mockito.Mockito.*;
 @RunWith(MockitoJUnitRunner.class)
 public class PreRenderSEOFilterTest {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     private PreRenderSEOFilter preRenderSEOFilter;
 
+    private PrerenderSeoService prerenderSeoService;
+
     @Mock
     private CloseableHttpClient httpClient;
 
+    @Mock
+    private CloseableHttpAsyncClient asyncHttpClient;
+
+    @Mock
+    private AsyncContext asyncContext;
+
     @Mock
     private FilterConfig filterConfig;
 
@@ -52,13 +90,15 @@ public class PreRenderSEOFilterTest {
     private HttpGet httpGet;
     @Mock
     private PrintWriter printWriter;
+    @Mock
+    private ServletOutputStream servletOutputStream;
 
     @Before
     public void setUp() throws Exception {
         preRenderSEOFilter = new PreRenderSEOFilter() {
             @Override
             public void init(FilterConfig filterConfig) throws ServletException {
-                setPrerenderSeoService(new PrerenderSeoService(toMap(filterConfig)) {
+                setPrerenderSeoService(prerenderSeoService = new PrerenderSeoService(toMap(filterConfig)) {
                     @Override
                     protected CloseableHttpClient getHttpClient() {
                         return httpClient;
@@ -68,6 +108,11 @@ public class PreRenderSEOFilterTest {
                     protected HttpGet getHttpGet(String apiUrl) {
                         return httpGet;
                     }
+
+                    @Override
+                    protected CloseableHttpAsyncClient getAsyncHttpClient() {
+                        return asyncHttpClient;
+                    }
                 });
             }
         };
@@ -100,8 +145,8 @@ public class PreRenderSEOFilterTest {
         when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
         when(httpClient.execute(httpGet)).thenReturn(httpResponse);
         when(httpResponse.getStatusLine()).thenReturn(statusLine);
-        final HashMap<String, String> map = Maps.newHashMap();
-        map.put(ESCAPED_FRAGMENT_KEY, "");
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
         when(servletRequest.getParameterMap()).thenReturn(map);
         when(statusLine.getStatusCode()).thenReturn(SC_OK);
         when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
@@ -122,7 +167,7 @@ public class PreRenderSEOFilterTest {
 
         when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
         when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
-        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String>newHashMap());
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
         when(servletRequest.getHeader("User-Agent")).thenReturn("no");
         //when
         preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
@@ -140,7 +185,7 @@ public class PreRenderSEOFilterTest {
 
         when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
         when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
-        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String>newHashMap());
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
         when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
         when(servletRequest.getHeader("X-Prerender")).thenReturn("1");
         //when
@@ -159,7 +204,7 @@ public class PreRenderSEOFilterTest {
 
         when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test.js"));
         when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
-        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String>newHashMap());
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
         when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
         //when
         preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
@@ -178,7 +223,7 @@ public class PreRenderSEOFilterTest {
 
         when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
         when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
-        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String>newHashMap());
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
         when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
         //when
         preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
@@ -197,7 +242,7 @@ public class PreRenderSEOFilterTest {
 
         when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
         when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
-        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String>newHashMap());
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
         when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
         //when
         preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
@@ -223,8 +268,8 @@ public class PreRenderSEOFilterTest {
         when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
         when(httpClient.execute(httpGet)).thenReturn(httpResponse);
         when(httpResponse.getStatusLine()).thenReturn(statusLine);
-        final HashMap<String, String> map = Maps.newHashMap();
-        map.put(ESCAPED_FRAGMENT_KEY, "");
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
         when(servletRequest.getParameterMap()).thenReturn(map);
         when(statusLine.getStatusCode()).thenReturn(SC_OK);
         when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
@@ -253,8 +298,8 @@ public class PreRenderSEOFilterTest {
         when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
         when(httpClient.execute(httpGet)).thenReturn(httpResponse);
         when(httpResponse.getStatusLine()).thenReturn(statusLine);
-        final HashMap<String, String> map = Maps.newHashMap();
-        map.put(ESCAPED_FRAGMENT_KEY, "");
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
         when(servletRequest.getParameterMap()).thenReturn(map);
         when(statusLine.getStatusCode()).thenReturn(SC_NOT_FOUND);
         when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
@@ -290,8 +335,8 @@ public class PreRenderSEOFilterTest {
         when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
         when(httpClient.execute(httpGet)).thenReturn(httpResponse);
         when(httpResponse.getStatusLine()).thenReturn(statusLine);
-        final HashMap<String, String> map = Maps.newHashMap();
-        map.put(ESCAPED_FRAGMENT_KEY, "");
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
         when(servletRequest.getParameterMap()).thenReturn(map);
         when(statusLine.getStatusCode()).thenReturn(SC_OK);
         when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
@@ -324,8 +369,8 @@ public class PreRenderSEOFilterTest {
         when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
         when(httpClient.execute(httpGet)).thenReturn(httpResponse);
         when(httpResponse.getStatusLine()).thenReturn(statusLine);
-        final HashMap<String, String> map = Maps.newHashMap();
-        map.put(ESCAPED_FRAGMENT_KEY, "");
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
         when(servletRequest.getParameterMap()).thenReturn(map);
         when(statusLine.getStatusCode()).thenReturn(SC_OK);
         when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
@@ -338,4 +383,1024 @@ public class PreRenderSEOFilterTest {
         verify(httpClient).execute(httpGet);
         verify(filterChain, never()).doFilter(servletRequest, servletResponse);
     }
+
+    @Test
+    public void should_serve_second_request_from_cache_when_page_cache_is_enabled() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(1)).execute(httpGet);
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_not_replay_set_cookie_of_cached_page() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("Set-Cookie", "session=first-bot"),
+                new BasicHeader("Content-Type", "text/html")});
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(1)).execute(httpGet);
+        verify(servletResponse, times(1)).addHeader("Set-Cookie", "session=first-bot");
+        verify(servletResponse, times(2)).addHeader("Content-Type", "text/html");
+    }
+
+    @Test
+    public void should_not_cache_private_page() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("Cache-Control", "max-age=60, Private")});
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(2)).execute(httpGet);
+        assertThat(prerenderSeoService.isCached("http://localhost/test"), is(false));
+    }
+
+    @Test
+    public void should_share_cached_page_between_query_string_variants_when_urls_are_canonicalized() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("canonicalizeUrls")).thenReturn("true");
+        when(filterConfig.getInitParameter("stripTrailingSlash")).thenReturn("true");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://LOCALHOST/test/"));
+        when(servletRequest.getQueryString()).thenReturn("utm_source=mail&id=1", "id=1&utm_source=feed");
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(1)).execute(httpGet);
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        assertThat(prerenderSeoService.isCached("http://localhost/test?id=1"), is(true));
+    }
+
+    @Test(timeout = 5000)
+    public void should_drop_disk_cached_page_before_invalidate_returns() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("diskCacheDirectory")).thenReturn(folder.newFolder("pages").getPath());
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        while (!prerenderSeoService.isCached("http://localhost/test")) {
+            Thread.sleep(5);
+        }
+
+        //when
+        prerenderSeoService.invalidate("http://localhost/test");
+
+        //then
+        assertThat(prerenderSeoService.isCached("http://localhost/test"), is(false));
+        preRenderSEOFilter.destroy();
+    }
+
+    @Test
+    public void should_serve_stale_page_and_refresh_it_in_background_after_soft_ttl() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("cacheTtl")).thenReturn("0");
+        when(filterConfig.getInitParameter("cacheStaleWhileRevalidate")).thenReturn("60000");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        verify(httpClient, timeout(5000).times(2)).execute(httpGet);
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_share_background_refresh_with_coalesced_render_of_same_url() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("cacheTtl")).thenReturn("0");
+        when(filterConfig.getInitParameter("cacheStaleWhileRevalidate")).thenReturn("60000");
+        when(filterConfig.getInitParameter("coalesceRequests")).thenReturn("true");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final AtomicInteger calls = new AtomicInteger();
+        final CountDownLatch refreshStarted = new CountDownLatch(1);
+        final CountDownLatch releaseRefresh = new CountDownLatch(1);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenAnswer(new Answer<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                if (calls.incrementAndGet() == 2) {
+                    refreshStarted.countDown();
+                    releaseRefresh.await(5, TimeUnit.SECONDS);
+                }
+                return httpResponse;
+            }
+        });
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        assertThat(refreshStarted.await(5, TimeUnit.SECONDS), is(true));
+
+        //when
+        final Thread render = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    prerenderSeoService.recache("http://localhost/test");
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        render.start();
+        Thread.sleep(100);
+        releaseRefresh.countDown();
+        render.join(5000);
+
+        //then
+        assertThat(calls.get(), is(2));
+    }
+
+    @Test
+    public void should_serve_stale_page_when_prerender_service_fails() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("cacheTtl")).thenReturn("0");
+        when(filterConfig.getInitParameter("cacheStaleIfError")).thenReturn("60000");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse).thenThrow(new IOException("connection refused"));
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(2)).execute(httpGet);
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_serve_cached_page_gzip_compressed_when_client_accepts_gzip() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeader("Accept-Encoding")).thenReturn("gzip, deflate, br");
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html>test</html>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        final ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        final ArgumentCaptor<Integer> offset = ArgumentCaptor.forClass(Integer.class);
+        final ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+        verify(servletOutputStream).write(body.capture(), offset.capture(), length.capture());
+        final GZIPInputStream gunzip = new GZIPInputStream(
+                new ByteArrayInputStream(body.getValue(), offset.getValue(), length.getValue()));
+        assertThat(new String(ByteStreams.toByteArray(gunzip), "UTF-8"), is("<html>test</html>"));
+        verify(servletResponse).setHeader("Content-Encoding", "gzip");
+        verify(servletResponse).addHeader("Vary", "Accept-Encoding");
+        verify(servletResponse).setContentLength(length.getValue());
+    }
+
+    @Test
+    public void should_stream_render_through_html_transformers() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("htmlTransformers")).thenReturn(CanonicalLinkTransformer.class.getName());
+        when(filterConfig.getInitParameter("metricsRegistry")).thenReturn("jmx");
+        when(filterConfig.getInitParameter("metricsName")).thenReturn("transformTest");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        final Header contentType = new BasicHeader("Content-Type", "text/html; charset=UTF-8");
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{contentType, new BasicHeader("Content-Length", "42")});
+        when(httpResponse.getFirstHeader("Content-Type")).thenReturn(contentType);
+        when(httpResponse.getEntity()).thenReturn(new StringEntity("<html><head></head><body>caf\u00e9</body></html>",
+                ContentType.create("text/html", "UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(new ServletOutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                output.write(b);
+            }
+        });
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        final JmxPrerenderMetrics metrics = (JmxPrerenderMetrics) prerenderSeoService.getMetrics();
+        try {
+            assertThat(output.toString("UTF-8"), is("<html><head><link rel=\"canonical\" href=\"http://localhost/test\">"
+                    + "</head><body>caf\u00e9</body></html>"));
+            verify(servletResponse).setCharacterEncoding("UTF-8");
+            verify(servletResponse).addHeader("Content-Type", "text/html; charset=UTF-8");
+            verify(servletResponse, never()).addHeader("Content-Length", "42");
+            assertThat(metrics.getAttribute("bytesProxied"), is((Object) (long) output.size()));
+        } finally {
+            preRenderSEOFilter.destroy();
+        }
+    }
+
+    @Test
+    public void should_cache_page_transformed_by_html_transformers() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("htmlTransformers")).thenReturn(CanonicalLinkTransformer.class.getName());
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeader("Accept-Encoding")).thenReturn("gzip");
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("Content-Type", "text/html")});
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<head></head>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        final ArgumentCaptor<byte[]> body = ArgumentCaptor.forClass(byte[].class);
+        final ArgumentCaptor<Integer> offset = ArgumentCaptor.forClass(Integer.class);
+        final ArgumentCaptor<Integer> length = ArgumentCaptor.forClass(Integer.class);
+        verify(servletOutputStream).write(body.capture(), offset.capture(), length.capture());
+        final GZIPInputStream gunzip = new GZIPInputStream(
+                new ByteArrayInputStream(body.getValue(), offset.getValue(), length.getValue()));
+        assertThat(new String(ByteStreams.toByteArray(gunzip), "UTF-8"),
+                is("<head><link rel=\"canonical\" href=\"http://localhost/test\"></head>"));
+    }
+
+    @Test
+    public void should_accept_gzip_only_when_listed_with_non_zero_quality() {
+        assertThat(PrerenderSeoService.acceptsGzip("gzip, deflate, br"), is(true));
+        assertThat(PrerenderSeoService.acceptsGzip("br;q=1.0, GZIP;q=0.5"), is(true));
+        assertThat(PrerenderSeoService.acceptsGzip("*"), is(true));
+        assertThat(PrerenderSeoService.acceptsGzip("gzip;q=0, *"), is(false));
+        assertThat(PrerenderSeoService.acceptsGzip("deflate, br"), is(false));
+        assertThat(PrerenderSeoService.acceptsGzip(null), is(false));
+    }
+
+    @Test
+    public void should_answer_bot_conditional_get_with_not_modified_from_cache() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeader("If-None-Match")).thenReturn(null, "\"v2\", W/\"v1\"");
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("ETag", "\"v1\"")});
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(1)).execute(httpGet);
+        verify(servletResponse).setStatus(SC_OK);
+        verify(servletResponse).setStatus(SC_NOT_MODIFIED);
+        verify(servletResponse, times(2)).addHeader("ETag", "\"v1\"");
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_give_gzip_representation_its_own_etag() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeader("Accept-Encoding")).thenReturn("gzip");
+        when(servletRequest.getHeader("If-None-Match")).thenReturn(null, "\"v1\"", "\"v1-gzip\"");
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("ETag", "\"v1\"")});
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html>test</html>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(1)).execute(httpGet);
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        verify(servletResponse, times(2)).setHeader("ETag", "\"v1-gzip\"");
+        verify(servletResponse).setStatus(SC_NOT_MODIFIED);
+        verify(servletResponse).addHeader("ETag", "\"v1-gzip\"");
+        verify(servletResponse, times(3)).addHeader("Vary", "Accept-Encoding");
+    }
+
+    @Test
+    public void should_suffix_opaque_tag_of_gzip_etag() {
+        assertThat(PrerenderSeoService.toGzipEtag("\"v1\""), is("\"v1-gzip\""));
+        assertThat(PrerenderSeoService.toGzipEtag("W/\"v1\""), is("W/\"v1-gzip\""));
+    }
+
+    @Test
+    public void should_revalidate_expired_page_with_its_validators() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("cacheMaxEntries")).thenReturn("10");
+        when(filterConfig.getInitParameter("cacheTtl")).thenReturn("0");
+        when(filterConfig.getInitParameter("cacheStaleIfError")).thenReturn("60000");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final CloseableHttpResponse notModifiedResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final StatusLine notModifiedStatusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse, notModifiedResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(notModifiedResponse.getStatusLine()).thenReturn(notModifiedStatusLine);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(notModifiedStatusLine.getStatusCode()).thenReturn(SC_NOT_MODIFIED);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("ETag", "\"v1\""),
+                new BasicHeader("Last-Modified", "Sat, 17 Oct 2026 10:00:00 GMT")});
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html>test</html>".getBytes("UTF-8")));
+        when(notModifiedResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("ETag", "\"v1\"")});
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpGet).setHeader("If-None-Match", "\"v1\"");
+        verify(httpGet).setHeader("If-Modified-Since", "Sat, 17 Oct 2026 10:00:00 GMT");
+        verify(servletResponse, times(2)).setStatus(SC_OK);
+        verify(servletResponse, times(2)).addHeader("Last-Modified", "Sat, 17 Oct 2026 10:00:00 GMT");
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_fall_through_to_chain_when_concurrency_limit_is_reached() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("concurrencyLimit")).thenReturn("1");
+        when(filterConfig.getInitParameter("concurrencyQueueSize")).thenReturn("0");
+        preRenderSEOFilter.init(filterConfig);
+        prerenderSeoService.getConcurrencyLimiter().tryAcquire();
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, never()).execute(httpGet);
+        verify(filterChain).doFilter(servletRequest, servletResponse);
+        assertThat(prerenderSeoService.getConcurrencyLimiter().getRejectedCount(), is(1L));
+    }
+
+    @Test
+    public void should_skip_prerender_call_when_circuit_breaker_is_open() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("circuitBreaker")).thenReturn("true");
+        when(filterConfig.getInitParameter("circuitBreakerMinimumCalls")).thenReturn("2");
+        preRenderSEOFilter.init(filterConfig);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(httpClient.execute(httpGet)).thenThrow(new IOException("connection refused"));
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, times(2)).execute(httpGet);
+        verify(filterChain, times(3)).doFilter(servletRequest, servletResponse);
+        final CircuitBreaker circuitBreaker = prerenderSeoService.getEndpointPool().getEndpoints().get(0)
+                .getCircuitBreaker();
+        assertThat(circuitBreaker.getState(), is(CircuitBreaker.State.OPEN));
+    }
+
+    @Test
+    public void should_serve_hedged_render_when_first_endpoint_is_slow() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("prerenderServiceUrl")).thenReturn("http://render1:3000,http://render2:3000");
+        when(filterConfig.getInitParameter("hedgeDelayPercentile")).thenReturn("95");
+        when(filterConfig.getInitParameter("hedgeMinDelay")).thenReturn("10");
+        when(filterConfig.getInitParameter("hedgeBudgetPercent")).thenReturn("100");
+        preRenderSEOFilter.init(filterConfig);
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final AtomicInteger calls = new AtomicInteger();
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(httpClient.execute(httpGet)).thenAnswer(new Answer<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                if (calls.incrementAndGet() == 1) {
+                    Thread.sleep(5000);
+                }
+                return httpResponse;
+            }
+        });
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html></html>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        final long start = System.currentTimeMillis();
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        assertThat(System.currentTimeMillis() - start < 5000, is(true));
+        assertThat(calls.get(), is(2));
+        assertThat(prerenderSeoService.getHedgePolicy().getHedgedCount(), is(1L));
+        verify(servletResponse).setStatus(SC_OK);
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_skip_hedge_when_hedge_threads_are_busy() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("prerenderServiceUrl")).thenReturn("http://render1:3000,http://render2:3000");
+        when(filterConfig.getInitParameter("hedgeDelayPercentile")).thenReturn("95");
+        when(filterConfig.getInitParameter("hedgeMinDelay")).thenReturn("10");
+        when(filterConfig.getInitParameter("hedgeBudgetPercent")).thenReturn("100");
+        when(filterConfig.getInitParameter("hedgeMaxThreads")).thenReturn("1");
+        when(filterConfig.getInitParameter("metricsRegistry")).thenReturn("jmx");
+        when(filterConfig.getInitParameter("metricsName")).thenReturn("hedgeTest");
+        preRenderSEOFilter.init(filterConfig);
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final AtomicInteger calls = new AtomicInteger();
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(httpClient.execute(httpGet)).thenAnswer(new Answer<CloseableHttpResponse>() {
+            @Override
+            public CloseableHttpResponse answer(InvocationOnMock invocation) throws Throwable {
+                calls.incrementAndGet();
+                Thread.sleep(200);
+                return httpResponse;
+            }
+        });
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html></html>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        final JmxPrerenderMetrics metrics = (JmxPrerenderMetrics) prerenderSeoService.getMetrics();
+        try {
+            assertThat(calls.get(), is(1));
+            assertThat(metrics.getAttribute("hedge.rejected"), is((Object) 1L));
+            verify(servletResponse).setStatus(SC_OK);
+        } finally {
+            preRenderSEOFilter.destroy();
+        }
+    }
+
+    @Test
+    public void should_count_decisions_and_time_upstream_calls_when_metrics_are_enabled() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("metricsRegistry")).thenReturn("jmx");
+        when(filterConfig.getInitParameter("metricsName")).thenReturn("filterTest");
+        preRenderSEOFilter.init(filterConfig);
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity("<html></html>".getBytes("UTF-8")));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        final JmxPrerenderMetrics metrics = (JmxPrerenderMetrics) prerenderSeoService.getMetrics();
+        try {
+            assertThat(metrics.getAttribute("decisions.escapedFragment"), is((Object) 1L));
+            assertThat(metrics.getAttribute("upstream.200.count"), is((Object) 1L));
+            assertThat(metrics.getAttribute("bytesProxied"), is((Object) 13L));
+        } finally {
+            preRenderSEOFilter.destroy();
+        }
+    }
+
+    @Test
+    public void should_expose_endpoint_health_and_circuit_breaker_state_as_gauges() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("prerenderServiceUrl")).thenReturn("http://render1:3000,http://render2:3000");
+        when(filterConfig.getInitParameter("circuitBreaker")).thenReturn("true");
+        when(filterConfig.getInitParameter("metricsRegistry")).thenReturn("jmx");
+        when(filterConfig.getInitParameter("metricsName")).thenReturn("endpointTest");
+        //when
+        preRenderSEOFilter.init(filterConfig);
+        prerenderSeoService.getEndpointPool().getEndpoints().get(1).setHealthy(false);
+        //then
+        final JmxPrerenderMetrics metrics = (JmxPrerenderMetrics) prerenderSeoService.getMetrics();
+        try {
+            assertThat(metrics.getAttribute("endpoint.0.healthy"), is((Object) 1));
+            assertThat(metrics.getAttribute("endpoint.1.healthy"), is((Object) 0));
+            assertThat(metrics.getAttribute("endpoint.0.ejected"), is((Object) 0));
+            assertThat(metrics.getAttribute("endpoint.0.circuitState"),
+                    is((Object) CircuitBreaker.State.CLOSED.ordinal()));
+            assertThat(metrics.getAttribute("endpoint.1.circuitNotPermitted"), is((Object) 0L));
+        } finally {
+            preRenderSEOFilter.destroy();
+        }
+    }
+
+    @Test
+    public void should_stream_prerendered_body_bytes_when_no_event_handler() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("crawlerUserAgents")).thenReturn("crawler1,crawler2");
+        preRenderSEOFilter.init(filterConfig);
+
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final byte[] body = "<html>\u4e2d\u6587</html>".getBytes("UTF-8");
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
+        when(httpClient.execute(httpGet)).thenReturn(httpResponse);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity(body));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(servletOutputStream).write(any(byte[].class), eq(0), eq(body.length));
+        verify(servletResponse, never()).getWriter();
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_not_handle_when_url_is_a_resource_with_query_string_and_upper_case_extension() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("crawlerUserAgents")).thenReturn("crawler1,crawler2");
+        when(filterConfig.getInitParameter("extensionsToIgnore")).thenReturn("webp");
+        preRenderSEOFilter.init(filterConfig);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/images/Logo.WEBP?v=2"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getParameterMap()).thenReturn(Maps.<String, String[]>newHashMap());
+        when(servletRequest.getHeader("User-Agent")).thenReturn("crawler1");
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(httpClient, never()).execute(httpGet);
+        verify(filterChain).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_complete_async_context_when_async_prerender_arrives() throws Exception {
+        //given
+        preRenderSEOFilter.init(filterConfig);
+        final FutureCallback<org.apache.http.HttpResponse> callback = startAsyncPrerender();
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[0]);
+
+        //when
+        callback.completed(httpResponse);
+        final ArgumentCaptor<Runnable> writer = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncContext).start(writer.capture());
+        writer.getValue().run();
+
+        //then
+        verify(httpClient, never()).execute(httpGet);
+        verify(servletResponse).setStatus(SC_OK);
+        verify(asyncContext).complete();
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_dispatch_to_normal_chain_when_async_prerender_fails() throws Exception {
+        //given
+        preRenderSEOFilter.init(filterConfig);
+        final FutureCallback<org.apache.http.HttpResponse> callback = startAsyncPrerender();
+
+        //when
+        callback.failed(new java.io.IOException("connection refused"));
+
+        //then
+        verify(servletRequest).setAttribute(PrerenderSeoService.ASYNC_FALLBACK_ATTRIBUTE, Boolean.TRUE);
+        verify(asyncContext).dispatch();
+        verify(asyncContext, never()).complete();
+
+        //when dispatched back
+        when(servletRequest.getAttribute(PrerenderSeoService.ASYNC_FALLBACK_ATTRIBUTE)).thenReturn(Boolean.TRUE);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        //then
+        verify(filterChain).doFilter(servletRequest, servletResponse);
+    }
+
+    @Test
+    public void should_decompress_gzip_async_prerender_for_event_handler() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("preRenderEventHandler")).thenReturn(MarkingEventHandler.class.getName());
+        preRenderSEOFilter.init(filterConfig);
+        final FutureCallback<org.apache.http.HttpResponse> callback = startAsyncPrerender();
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final StringWriter output = new StringWriter();
+        final ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+        final GZIPOutputStream gzip = new GZIPOutputStream(gzipped);
+        gzip.write("<html>caf\u00e9</html>".getBytes("UTF-8"));
+        gzip.close();
+        final Header contentEncoding = new BasicHeader("Content-Encoding", "gzip");
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{new BasicHeader("Content-Type",
+                "text/html; charset=UTF-8"), contentEncoding, new BasicHeader("Content-Length",
+                String.valueOf(gzipped.size()))});
+        when(httpResponse.getFirstHeader("Content-Encoding")).thenReturn(contentEncoding);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity(gzipped.toByteArray(),
+                ContentType.create("text/html", "UTF-8")));
+        when(servletResponse.getWriter()).thenReturn(new PrintWriter(output));
+
+        //when
+        callback.completed(httpResponse);
+        final ArgumentCaptor<Runnable> writer = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncContext).start(writer.capture());
+        writer.getValue().run();
+
+        //then
+        assertThat(output.toString(), is("<html>caf\u00e9</html><!-- rendered -->"));
+        verify(servletResponse).setCharacterEncoding("UTF-8");
+        verify(servletResponse).addHeader("Content-Type", "text/html; charset=UTF-8");
+        verify(servletResponse, never()).addHeader(eq("Content-Encoding"), anyString());
+        verify(servletResponse, never()).addHeader(eq("Content-Length"), anyString());
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void should_pass_through_async_prerender_in_unreadable_encoding_without_event_handler() throws Exception {
+        //given
+        when(filterConfig.getInitParameter("preRenderEventHandler")).thenReturn(MarkingEventHandler.class.getName());
+        preRenderSEOFilter.init(filterConfig);
+        final FutureCallback<org.apache.http.HttpResponse> callback = startAsyncPrerender();
+        final CloseableHttpResponse httpResponse = mock(CloseableHttpResponse.class);
+        final StatusLine statusLine = mock(StatusLine.class);
+        final Header contentEncoding = new BasicHeader("Content-Encoding", "br");
+        when(httpResponse.getStatusLine()).thenReturn(statusLine);
+        when(statusLine.getStatusCode()).thenReturn(SC_OK);
+        when(httpResponse.getAllHeaders()).thenReturn(new Header[]{contentEncoding});
+        when(httpResponse.getFirstHeader("Content-Encoding")).thenReturn(contentEncoding);
+        when(httpResponse.getEntity()).thenReturn(new ByteArrayEntity(new byte[]{1, 2, 3}));
+        when(servletResponse.getOutputStream()).thenReturn(servletOutputStream);
+
+        //when
+        callback.completed(httpResponse);
+        final ArgumentCaptor<Runnable> writer = ArgumentCaptor.forClass(Runnable.class);
+        verify(asyncContext).start(writer.capture());
+        writer.getValue().run();
+
+        //then
+        verify(servletResponse).addHeader("Content-Encoding", "br");
+        verify(servletResponse, never()).getWriter();
+        verify(servletOutputStream).write(any(byte[].class), eq(0), eq(3));
+        verify(asyncContext).complete();
+    }
+
+    @SuppressWarnings("unchecked")
+    private FutureCallback<org.apache.http.HttpResponse> startAsyncPrerender() throws Exception {
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        when(servletRequest.getHeaderNames()).thenReturn(mock(Enumeration.class));
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(servletRequest.isAsyncSupported()).thenReturn(true);
+        when(servletRequest.startAsync(servletRequest, servletResponse)).thenReturn(asyncContext);
+        when(asyncContext.getRequest()).thenReturn(servletRequest);
+        when(asyncContext.getResponse()).thenReturn(servletResponse);
+
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+
+        final ArgumentCaptor<FutureCallback> callback = ArgumentCaptor.forClass(FutureCallback.class);
+        verify(asyncHttpClient).execute(eq(httpGet), callback.capture());
+        verify(filterChain, never()).doFilter(servletRequest, servletResponse);
+        return callback.getValue();
+    }
+
+    @Test
+    public void should_create_event_handler_once_and_share_it_across_requests() throws Exception {
+        //given
+        CountingEventHandler.instances.set(0);
+        CountingEventHandler.beforeRenders.set(0);
+        when(filterConfig.getInitParameter("preRenderEventHandler")).thenReturn(CountingEventHandler.class.getName());
+        preRenderSEOFilter.init(filterConfig);
+
+        when(servletRequest.getRequestURL()).thenReturn(new StringBuffer("http://localhost/test"));
+        when(servletRequest.getMethod()).thenReturn(METHOD_NAME);
+        final HashMap<String, String[]> map = Maps.newHashMap();
+        map.put(ESCAPED_FRAGMENT_KEY, new String[]{""});
+        when(servletRequest.getParameterMap()).thenReturn(map);
+        when(servletResponse.getWriter()).thenReturn(printWriter);
+
+        //when
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.doFilter(servletRequest, servletResponse, filterChain);
+        preRenderSEOFilter.destroy();
+
+        //then
+        assertThat(CountingEventHandler.instances.get(), is(1));
+        assertThat(CountingEventHandler.beforeRenders.get(), is(2));
+        assertThat(CountingEventHandler.destroys.get(), is(1));
+        verify(httpClient, never()).execute(httpGet);
+    }
+
+    public static class CanonicalLinkTransformer implements HtmlTransformer {
+        @Override
+        public Writer transform(final String url, Writer output) {
+            return new HtmlTokenWriter(output) {
+                @Override
+                protected void markup(String markup) throws IOException {
+                    if (isEndTag(markup) && "head".equals(getTagName(markup))) {
+                        out.write("<link rel=\"canonical\" href=\"" + url + "\">");
+                    }
+                    out.write(markup);
+                }
+            };
+        }
+    }
+
+    public static class MarkingEventHandler implements PreRenderEventHandler {
+        @Override
+        public String beforeRender(HttpServletRequest clientRequest) {
+            return null;
+        }
+
+        @Override
+        public String afterRender(HttpServletRequest clientRequest, HttpServletResponse clientResponse,
+                                  org.apache.http.HttpResponse prerenderResponse, String responseHtml) {
+            return responseHtml + "<!-- rendered -->";
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    public static class CountingEventHandler implements PreRenderEventHandler {
+        static final AtomicInteger instances = new AtomicInteger();
+        static final AtomicInteger beforeRenders = new AtomicInteger();
+        static final AtomicInteger destroys = new AtomicInteger();
+
+        public CountingEventHandler() {
+            instances.incrementAndGet();
+            destroys.set(0);
+        }
+
+        @Override
+        public String beforeRender(HttpServletRequest clientRequest) {
+            beforeRenders.incrementAndGet();
+            return "<html>cached</html>";
+        }
+
+        @Override
+        public String afterRender(HttpServletRequest clientRequest, HttpServletResponse clientResponse,
+                                  org.apache.http.HttpResponse prerenderResponse, String responseHtml) {
+            return responseHtml;
+        }
+
+        @Override
+        public void destroy() {
+            destroys.incrementAndGet();
+        }
+    }
 }
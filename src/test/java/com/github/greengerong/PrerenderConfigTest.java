@@ -2,9 +2,11 @@ package com.github.greengerong;
 
 import com.google.common.collect.Maps;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.junit.Test;
 
 import java.util.Map;
+import java.util.regex.PatternSyntaxException;
 
 import static org.hamcrest.core.Is.is;
 import static org.hamcrest.core.IsNull.notNullValue;
@@ -32,4 +34,57 @@ public class PrerenderConfigTest {
 
         assertThat(httpClient, is(notNullValue()));
     }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void should_throw_exception_when_creating_config_with_invalid_blacklist_pattern() throws Exception {
+        //given
+        Map<String, String> configuration = Maps.newHashMap();
+        configuration.put("blacklist", "http://localhost/(");
+        //when
+        new PrerenderConfig(configuration);
+    }
+
+    @Test
+    public void should_parse_prerender_service_url_once() throws Exception {
+        //given
+        Map<String, String> configuration = Maps.newHashMap();
+        configuration.put("prerenderServiceUrl", "http://localhost:3000");
+        configuration.put("prerenderToken", "token");
+        //when
+        PrerenderConfig config = new PrerenderConfig(configuration);
+        //then
+        assertThat(config.getPrerenderServiceUrl(), is("http://localhost:3000"));
+        assertThat(config.getPrerenderTokenHeader().getValue(), is("token"));
+    }
+
+    @Test
+    public void should_build_endpoint_pool_from_prerender_service_url_list() throws Exception {
+        //given
+        Map<String, String> configuration = Maps.newHashMap();
+        configuration.put("prerenderServiceUrl", "http://render1:3000, http://render2:3000/");
+        configuration.put("circuitBreaker", "true");
+        PrerenderConfig config = new PrerenderConfig(configuration);
+        //when
+        final PrerenderEndpointPool pool = config.getEndpointPool();
+        //then
+        assertThat(config.getPrerenderServiceUrl(), is("http://render1:3000"));
+        assertThat(pool.getEndpoints().size(), is(2));
+        assertThat(pool.getEndpoints().get(0).getBaseUrl(), is("http://render1:3000/"));
+        assertThat(pool.getEndpoints().get(1).getBaseUrl(), is("http://render2:3000/"));
+        assertThat(pool.getEndpoints().get(1).getHostHeader(), is("render2:3000"));
+        assertThat(pool.getEndpoints().get(1).getCircuitBreaker().getName(), is("render2:3000"));
+    }
+
+    @Test
+    public void should_size_connection_pool_from_config() throws Exception {
+        //given
+        Map<String, String> configuration = Maps.newHashMap();
+        configuration.put("maxConnections", "50");
+        PrerenderConfig config = new PrerenderConfig(configuration);
+        //when
+        final PoolingHttpClientConnectionManager connectionManager = config.getConnectionManager();
+        //then
+        assertThat(connectionManager.getMaxTotal(), is(50));
+        assertThat(connectionManager.getDefaultMaxPerRoute(), is(50));
+    }
 }
@@ -0,0 +1,130 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNot.not;
+import static org.hamcrest.core.IsSame.sameInstance;
+import static org.junit.Assert.assertThat;
+
+public class PrerenderEndpointPoolTest {
+    private final FakeTicker ticker = new FakeTicker();
+
+    @Test
+    public void should_pick_endpoint_with_fewer_outstanding_calls_of_two() throws Exception {
+        //given
+        final List<PrerenderEndpoint> endpoints = endpoints(2);
+        final PrerenderEndpointPool pool = new PrerenderEndpointPool(endpoints, PrerenderEndpointPool.P2C);
+        endpoints.get(0).onStart();
+        //when
+        final PrerenderEndpoint endpoint = pool.choose("http://localhost/test");
+        //then
+        assertThat(endpoint, is(sameInstance(endpoints.get(1))));
+    }
+
+    @Test
+    public void should_pick_least_outstanding_endpoint() throws Exception {
+        //given
+        final List<PrerenderEndpoint> endpoints = endpoints(3);
+        final PrerenderEndpointPool pool = new PrerenderEndpointPool(endpoints, PrerenderEndpointPool.LEAST_OUTSTANDING);
+        endpoints.get(0).onStart();
+        endpoints.get(1).onStart();
+        endpoints.get(1).onStart();
+        endpoints.get(2).onStart();
+        endpoints.get(0).onFinish(true);
+        //when
+        final PrerenderEndpoint endpoint = pool.choose("http://localhost/test");
+        //then
+        assertThat(endpoint, is(sameInstance(endpoints.get(0))));
+    }
+
+    @Test
+    public void should_eject_endpoint_after_consecutive_failures_until_ejection_time_passes() throws Exception {
+        //given
+        final List<PrerenderEndpoint> endpoints = endpoints(2);
+        final PrerenderEndpointPool pool = new PrerenderEndpointPool(endpoints, PrerenderEndpointPool.LEAST_OUTSTANDING);
+        for (int i = 0; i < 3; i++) {
+            endpoints.get(0).onStart();
+            endpoints.get(0).onFinish(false);
+        }
+        endpoints.get(1).onStart();
+        //when
+        final PrerenderEndpoint endpoint = pool.choose("http://localhost/test");
+        //then
+        assertThat(endpoints.get(0).isEjected(), is(true));
+        assertThat(endpoint, is(sameInstance(endpoints.get(1))));
+        ticker.advance(1000);
+        assertThat(pool.choose("http://localhost/test"), is(sameInstance(endpoints.get(0))));
+    }
+
+    @Test
+    public void should_still_choose_an_endpoint_when_none_is_available() throws Exception {
+        //given
+        final List<PrerenderEndpoint> endpoints = endpoints(2);
+        final PrerenderEndpointPool pool = new PrerenderEndpointPool(endpoints, PrerenderEndpointPool.P2C);
+        endpoints.get(0).setHealthy(false);
+        endpoints.get(1).setHealthy(false);
+        //when
+        final PrerenderEndpoint endpoint = pool.choose("http://localhost/test");
+        //then
+        assertThat(endpoints.contains(endpoint), is(true));
+    }
+
+    @Test
+    public void should_map_url_to_same_endpoint_with_consistent_hash() throws Exception {
+        //given
+        final List<PrerenderEndpoint> endpoints = endpoints(4);
+        final PrerenderEndpointPool pool = new PrerenderEndpointPool(endpoints, PrerenderEndpointPool.CONSISTENT_HASH);
+        final PrerenderEndpoint first = pool.choose("http://localhost/page/1");
+        int spread = 0;
+        for (PrerenderEndpoint endpoint : endpoints) {
+            for (int i = 0; i < 100; i++) {
+                if (pool.choose("http://localhost/page/" + i) == endpoint) {
+                    spread++;
+                    break;
+                }
+            }
+        }
+        //when
+        first.setHealthy(false);
+        final PrerenderEndpoint fallback = pool.choose("http://localhost/page/1");
+        //then
+        assertThat(pool.choose("http://localhost/page/2"), is(pool.choose("http://localhost/page/2")));
+        assertThat(spread, is(4));
+        assertThat(fallback, is(not(sameInstance(first))));
+        first.setHealthy(true);
+        assertThat(pool.choose("http://localhost/page/1"), is(sameInstance(first)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void should_reject_unknown_load_balancer() throws Exception {
+        new PrerenderEndpointPool(endpoints(1), "random");
+    }
+
+    private List<PrerenderEndpoint> endpoints(int count) {
+        final List<PrerenderEndpoint> endpoints = Lists.newArrayList();
+        for (int i = 0; i < count; i++) {
+            endpoints.add(new PrerenderEndpoint("http://render" + i + ":3000", "render" + i + ":3000", null, 3, 1000,
+                    ticker));
+        }
+        return endpoints;
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package com.github.greengerong;
+
+import com.google.common.base.Ticker;
+import org.apache.http.Header;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.core.Is.is;
+import static org.hamcrest.core.IsNull.notNullValue;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+public class PrerenderedPageCacheTest {
+
+    private FakeTicker ticker;
+
+    @Before
+    public void setUp() throws Exception {
+        ticker = new FakeTicker();
+    }
+
+    @Test
+    public void should_return_cached_page_before_ttl() throws Exception {
+        //given
+        PrerenderedPageCache cache = new PrerenderedPageCache(10, 1024 * 1024, 1000, ticker);
+        cache.put("http://localhost/a", page(cache, 10));
+        //when
+        ticker.advance(999);
+        //then
+        assertThat(cache.get("http://localhost/a"), is(notNullValue()));
+    }
+
+    @Test
+    public void should_expire_page_after_ttl() throws Exception {
+        //given
+        PrerenderedPageCache cache = new PrerenderedPageCache(10, 1024 * 1024, 1000, ticker);
+        cache.put("http://localhost/a", page(cache, 10));
+        //when
+        ticker.advance(1000);
+        //then
+        assertThat(cache.get("http://localhost/a"), is(nullValue()));
+        assertThat(cache.size(), is(0));
+    }
+
+    @Test
+    public void should_evict_least_recently_used_page_when_max_entries_exceeded() throws Exception {
+        //given
+        PrerenderedPageCache cache = new PrerenderedPageCache(2, 1024 * 1024, 1000, ticker);
+        cache.put("http://localhost/a", page(cache, 10));
+        cache.put("http://localhost/b", page(cache, 10));
+        cache.get("http://localhost/a");
+        //when
+        cache.put("http://localhost/c", page(cache, 10));
+        //then
+        assertThat(cache.get("http://localhost/a"), is(notNullValue()));
+        assertThat(cache.get("http://localhost/b"), is(nullValue()));
+        assertThat(cache.get("http://localhost/c"), is(notNullValue()));
+    }
+
+    @Test
+    public void should_evict_pages_when_max_bytes_exceeded() throws Exception {
+        //given
+        final long pageSize = page(null, 1000).getSize();
+        PrerenderedPageCache cache = new PrerenderedPageCache(10, pageSize * 2, 1000, ticker);
+        cache.put("http://localhost/a", page(cache, 1000));
+        cache.put("http://localhost/b", page(cache, 1000));
+        //when
+        cache.put("http://localhost/c", page(cache, 1000));
+        //then
+        assertThat(cache.size(), is(2));
+        assertThat(cache.getTotalBytes(), is(pageSize * 2));
+        assertThat(cache.get("http://localhost/a"), is(nullValue()));
+    }
+
+    @Test
+    public void should_not_cache_page_larger_than_max_bytes() throws Exception {
+        //given
+        PrerenderedPageCache cache = new PrerenderedPageCache(10, 100, 1000, ticker);
+        //when
+        cache.put("http://localhost/a", page(cache, 1000));
+        //then
+        assertThat(cache.size(), is(0));
+        assertThat(cache.getTotalBytes(), is(0L));
+    }
+
+    @Test
+    public void should_invalidate_pages_by_url_prefix() throws Exception {
+        //given
+        PrerenderedPageCache cache = new PrerenderedPageCache(10, 1024 * 1024, 1000, ticker);
+        cache.put("http://localhost/products/1", page(cache, 10));
+        cache.put("http://localhost/products/2", page(cache, 10));
+        cache.put("http://localhost/about", page(cache, 10));
+        //when
+        final int invalidated = cache.invalidatePrefix("http://localhost/products/");
+        //then
+        assertThat(invalidated, is(2));
+        assertThat(cache.size(), is(1));
+        assertThat(cache.getTotalBytes(), is(page(null, 10).getSize()));
+        assertThat(cache.get("http://localhost/about"), is(notNullValue()));
+    }
+
+    private PrerenderedPage page(PrerenderedPageCache cache, int bodySize) {
+        return new PrerenderedPage(200, new Header[0], new byte[bodySize], cache != null ? cache.now() : 0);
+    }
+
+    private static class FakeTicker extends Ticker {
+        private long nanos;
+
+        @Override
+        public long read() {
+            return nanos;
+        }
+
+        void advance(long millis) {
+            nanos += TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+}
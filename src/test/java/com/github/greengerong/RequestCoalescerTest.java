@@ -0,0 +1,107 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class RequestCoalescerTest {
+
+    @Test
+    public void should_share_in_flight_result_with_concurrent_callers() throws Exception {
+        //given
+        final RequestCoalescer<String> coalescer = new RequestCoalescer<String>(5000);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                release.await();
+                return "html";
+            }
+        };
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final Future<String> leader = executor.submit(load(coalescer, loader));
+            started.await();
+            final Future<String> follower1 = executor.submit(load(coalescer, loader));
+            final Future<String> follower2 = executor.submit(load(coalescer, loader));
+            Thread.sleep(100);
+            //when
+            release.countDown();
+            //then
+            assertThat(leader.get(), is("html"));
+            assertThat(follower1.get(), is("html"));
+            assertThat(follower2.get(), is("html"));
+            assertThat(loads.get(), is(1));
+            assertThat(coalescer.getInFlightCount(), is(0));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void should_stop_waiting_for_in_flight_result_after_timeout() throws Exception {
+        //given
+        final RequestCoalescer<String> coalescer = new RequestCoalescer<String>(50);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(load(coalescer, new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    started.countDown();
+                    release.await(5, TimeUnit.SECONDS);
+                    return "html";
+                }
+            }));
+            started.await();
+            //when
+            coalescer.load("http://localhost/test", new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return "other";
+                }
+            });
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void should_rethrow_loader_exception() throws Exception {
+        //given
+        final RequestCoalescer<String> coalescer = new RequestCoalescer<String>(50);
+        //when
+        coalescer.load("http://localhost/test", new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IOException("connection refused");
+            }
+        });
+    }
+
+    private Callable<String> load(final RequestCoalescer<String> coalescer, final Callable<String> loader) {
+        return new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                return coalescer.load("http://localhost/test", loader);
+            }
+        };
+    }
+}
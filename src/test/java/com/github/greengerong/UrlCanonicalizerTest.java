@@ -0,0 +1,64 @@
+package com.github.greengerong;
+
+import com.google.common.collect.Lists;
+import org.junit.Test;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UrlCanonicalizerTest {
+
+    private final UrlCanonicalizer canonicalizer = new UrlCanonicalizer(Lists.newArrayList("utm_.*", "gclid"),
+            false);
+
+    @Test
+    public void should_drop_ignored_parameters_and_sort_the_others() throws Exception {
+        //given
+        final String url = "http://localhost/products?utm_source=mail&size=m&gclid=abc&color=red&color=blue&";
+        //when
+        final String canonical = canonicalizer.canonicalize(url);
+        //then
+        assertThat(canonical, is("http://localhost/products?color=red&color=blue&size=m"));
+    }
+
+    @Test
+    public void should_normalize_host_port_and_path() throws Exception {
+        //given
+        final String url = "HTTPS://User@WWW.Example.COM:443/caf%c3%a9/";
+        //when
+        final String canonical = canonicalizer.canonicalize(url);
+        //then
+        assertThat(canonical, is("https://User@www.example.com/caf%C3%A9/"));
+        assertThat(canonicalizer.canonicalize("http://localhost:8080"), is("http://localhost:8080/"));
+        assertThat(canonicalizer.canonicalize("http://localhost/?utm_medium=cpc"), is("http://localhost/"));
+    }
+
+    @Test
+    public void should_strip_trailing_slash_only_when_asked_to() throws Exception {
+        //given
+        final UrlCanonicalizer stripping = new UrlCanonicalizer(Lists.<String>newArrayList(), true);
+        //when
+        final String canonical = stripping.canonicalize("http://localhost/products//?id=1");
+        //then
+        assertThat(canonical, is("http://localhost/products?id=1"));
+        assertThat(stripping.canonicalize("http://localhost/"), is("http://localhost/"));
+        assertThat(canonicalizer.canonicalize("http://localhost/products/?id=1"), is("http://localhost/products/?id=1"));
+    }
+
+    @Test
+    public void should_map_escaped_fragment_to_hashbang() throws Exception {
+        //given
+        final String url = "http://localhost/?_escaped_fragment_=%2Fabout%3Ftab%3D2&lang=en";
+        //when
+        final String canonical = canonicalizer.canonicalize(url);
+        //then
+        assertThat(canonical, is("http://localhost/?lang=en#!/about?tab=2"));
+        assertThat(canonicalizer.canonicalize("http://localhost/about?_escaped_fragment_="),
+                is("http://localhost/about"));
+    }
+
+    @Test
+    public void should_leave_urls_without_scheme_untouched() throws Exception {
+        assertThat(canonicalizer.canonicalize("/relative?b=1&a=2"), is("/relative?b=1&a=2"));
+    }
+}
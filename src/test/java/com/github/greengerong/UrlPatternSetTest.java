@@ -0,0 +1,39 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.regex.PatternSyntaxException;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UrlPatternSetTest {
+
+    @Test
+    public void should_match_when_any_pattern_fully_matches() throws Exception {
+        //given
+        UrlPatternSet patterns = new UrlPatternSet(Arrays.asList("http://localhost/admin/.*", ".*\\.do", "http://localhost/test"));
+        //then
+        assertThat(patterns.matches("http://localhost/admin/users"), is(true));
+        assertThat(patterns.matches("http://localhost/search.do"), is(true));
+        assertThat(patterns.matches("http://localhost/test"), is(true));
+        assertThat(patterns.matches("http://localhost/test/1"), is(false));
+        assertThat(patterns.matches("http://localhost/"), is(false));
+    }
+
+    @Test
+    public void should_keep_back_references_working() throws Exception {
+        //given
+        UrlPatternSet patterns = new UrlPatternSet(Arrays.asList("http://localhost/(\\w+)/\\1", "http://localhost/b"));
+        //then
+        assertThat(patterns.matches("http://localhost/a/a"), is(true));
+        assertThat(patterns.matches("http://localhost/a/b"), is(false));
+        assertThat(patterns.matches("http://localhost/b"), is(true));
+    }
+
+    @Test(expected = PatternSyntaxException.class)
+    public void should_fail_fast_on_invalid_pattern() throws Exception {
+        new UrlPatternSet(Arrays.asList("http://localhost/(", "http://localhost/b"));
+    }
+}
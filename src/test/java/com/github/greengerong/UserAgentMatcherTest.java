@@ -0,0 +1,52 @@
+package com.github.greengerong;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.core.Is.is;
+import static org.junit.Assert.assertThat;
+
+public class UserAgentMatcherTest {
+
+    @Test
+    public void should_match_keyword_anywhere_in_user_agent_ignoring_case() throws Exception {
+        //given
+        UserAgentMatcher matcher = new UserAgentMatcher(Arrays.asList("twitterbot", "W3C_Validator", "Applebot"));
+        //then
+        assertThat(matcher.matches("Mozilla/5.0 (compatible; TwitterBot/1.0)"), is(true));
+        assertThat(matcher.matches("w3c_validator/1.3"), is(true));
+        assertThat(matcher.matches("Mozilla/5.0 (Macintosh) AppleWebKit/605.1.15 (KHTML, like Gecko) Applebot/0.1"), is(true));
+        assertThat(matcher.matches("Mozilla/5.0 (Macintosh) AppleWebKit/605.1.15 Safari/605.1.15"), is(false));
+    }
+
+    @Test
+    public void should_match_overlapping_keywords() throws Exception {
+        //given
+        UserAgentMatcher matcher = new UserAgentMatcher(Arrays.asList("he", "she", "his", "hers", "pinterestbot"));
+        //then
+        assertThat(matcher.matches("ushers"), is(true));
+        assertThat(matcher.matches("xxshxx"), is(false));
+        assertThat(matcher.matches("pinterespinterestbot"), is(true));
+        assertThat(matcher.matches("pinterespinterestbo"), is(false));
+    }
+
+    @Test
+    public void should_match_non_ascii_keywords() throws Exception {
+        //given
+        UserAgentMatcher matcher = new UserAgentMatcher(Arrays.asList("百度Spider"));
+        //then
+        assertThat(matcher.matches("Mozilla/5.0 百度spider/2.0"), is(true));
+        assertThat(matcher.matches("Mozilla/5.0 百spider/2.0"), is(false));
+    }
+
+    @Test
+    public void should_not_match_anything_without_keywords() throws Exception {
+        //given
+        UserAgentMatcher matcher = new UserAgentMatcher(Collections.<String>emptyList());
+        //then
+        assertThat(matcher.matches("twitterbot"), is(false));
+        assertThat(matcher.matches(""), is(false));
+    }
+}